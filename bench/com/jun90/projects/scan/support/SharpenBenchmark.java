@@ -0,0 +1,68 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Compares SharpenScanTask with an unsharp mask using a full 2D Gaussian kernel in filter2D.
+ * Not part of the library build, compile it against the library and OpenCV jars:
+ * javac -cp support-library.jar:opencv.jar -d bench-classes bench/com/jun90/projects/scan/support/SharpenBenchmark.java
+ * java -cp bench-classes:support-library.jar:opencv.jar:gson.jar -Djava.library.path=... com.jun90.projects.scan.support.SharpenBenchmark [width] [height] [rounds]
+ */
+public class SharpenBenchmark {
+
+	private static Mat naive(Mat mat, double sigma, double amount) {
+		int radius = (int) Math.ceil(sigma * 3);
+		Mat kernel1D = Imgproc.getGaussianKernel(radius * 2 + 1, sigma, CvType.CV_64F);
+		Mat kernel = new Mat();
+		Core.gemm(kernel1D, kernel1D.t(), 1, new Mat(), 0, kernel);
+		Mat blurred = new Mat(), outputMat = new Mat();
+		Imgproc.filter2D(mat, blurred, -1, kernel);
+		Core.addWeighted(mat, 1 + amount, blurred, -amount, 0, outputMat);
+		blurred.release();
+		return outputMat;
+	}
+	
+	private static double time(Runnable runnable, int rounds) {
+		runnable.run();
+		long start = System.nanoTime();
+		for(int i = 0; i < rounds; i++)
+			runnable.run();
+		return (System.nanoTime() - start) / 1e6 / rounds;
+	}
+	
+	public static void main(String[] args) {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 2480;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 3508;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		Mat mat = new Mat(height, width, CvType.CV_8UC3);
+		Core.randu(mat, 0, 256);
+		System.out.println("sigma\tbox ms\tfilter2D ms");
+		for(double sigma : new double[] { 1, 2, 4, 8 }) {
+			SharpenScanTask task = new SharpenScanTask(sigma, 0.8);
+			double box = time(() -> task.run(mat).release(), rounds);
+			double filter = time(() -> naive(mat, sigma, 0.8).release(), rounds);
+			System.out.printf("%.0f\t%.1f\t%.1f%n", sigma, box, filter);
+		}
+	}
+	
+}
@@ -0,0 +1,380 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.server;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import com.google.gson.JsonObject;
+import com.jun90.projects.scan.support.ImageScanner;
+import com.jun90.projects.scan.support.ScannerCache;
+import com.jun90.projects.scan.support.WarmUp;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embeddable scan worker.
+ * POST /scan?format=png with the recipe JSON in the X-Scan-Recipe header and the encoded image as body
+ * returns the encoded result, GET /metrics returns counters as JSON.
+ */
+public class WorkerServer {
+
+	private final HttpServer server;
+	private final ExecutorService workers, exchanges;
+	private final int threads, batchSize;
+	/* Longest time a request waits for its result, in nanoseconds */
+	private final long timeout;
+	/* Queued jobs by recipe, a recipe is in the map while a drain of it is scheduled */
+	private final Map<String, Queue<Job>> pending = new HashMap<String, Queue<Job>>();
+	/* Drains scheduled or running by recipe, guarded by pending */
+	private final Map<String, Integer> drains = new HashMap<String, Integer>();
+	/* Jobs not finished yet by recipe, image and format */
+	private final Map<Job, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<Job, CompletableFuture<byte[]>>();
+	
+	private final AtomicInteger queueDepth = new AtomicInteger();
+	private final AtomicLong requests = new AtomicLong(), coalesced = new AtomicLong(), batches = new AtomicLong(),
+			completed = new AtomicLong(), failed = new AtomicLong(), timedOut = new AtomicLong(), totalLatency = new AtomicLong(), maxLatency = new AtomicLong();
+	
+	/**
+	 * Construct a server answering 503 to requests waiting longer than a minute
+	 * @param address Address to listen on
+	 * @param threads Worker threads
+	 * @param batchSize Most jobs of the same recipe a worker runs in a row, a recipe with more queued jobs runs on more workers
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 */
+	public WorkerServer(InetSocketAddress address, int threads, int batchSize) throws IOException, IllegalArgumentException {
+		this(address, threads, batchSize, 60, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Construct a server
+	 * @param address Address to listen on
+	 * @param threads Worker threads
+	 * @param batchSize Most jobs of the same recipe a worker runs in a row, a recipe with more queued jobs runs on more workers
+	 * @param timeout Longest time a request waits for its result before 503 is returned
+	 * @param unit Unit of timeout
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 */
+	public WorkerServer(InetSocketAddress address, int threads, int batchSize, long timeout, TimeUnit unit) throws IOException, IllegalArgumentException {
+		if(threads <= 0 || batchSize <= 0 || timeout <= 0) throw new IllegalArgumentException();
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.timeout = unit.toNanos(timeout);
+		workers = Executors.newFixedThreadPool(threads);
+		exchanges = Executors.newCachedThreadPool();
+		server = HttpServer.create(address, 0);
+		server.createContext("/scan", this::handleScan);
+		server.createContext("/metrics", this::handleMetrics);
+		server.setExecutor(exchanges);
+	}
+	
+	public void start() {
+		server.start();
+	}
+	
+	/**
+	 * Stop accepting requests and stop the request and worker threads
+	 * @param delay Seconds to wait for open exchanges
+	 */
+	public void stop(int delay) {
+		server.stop(delay);
+		exchanges.shutdown();
+		workers.shutdown();
+	}
+	
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+	
+	/**
+	 * Submit a job, a job equal to one not finished yet shares its result
+	 * @param recipe Recipe JSON
+	 * @param image Encoded image
+	 * @param format Output format name of ImageIO
+	 * @return Future of the encoded result
+	 */
+	public CompletableFuture<byte[]> submit(String recipe, byte[] image, String format) {
+		requests.incrementAndGet();
+		Job job = new Job(recipe, image, format);
+		CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		CompletableFuture<byte[]> running = inFlight.putIfAbsent(job, future);
+		if(running != null) {
+			coalesced.incrementAndGet();
+			return running;
+		}
+		long start = System.nanoTime();
+		future.whenComplete((result, e) -> {
+			inFlight.remove(job, future);
+			long latency = System.nanoTime() - start;
+			totalLatency.addAndGet(latency);
+			maxLatency.accumulateAndGet(latency, Math::max);
+			if(e == null) completed.incrementAndGet();
+			else failed.incrementAndGet();
+		});
+		job.future = future;
+		boolean schedule;
+		synchronized(pending) {
+			Queue<Job> queue = pending.get(recipe);
+			if(queue == null) {
+				queue = new ArrayDeque<Job>();
+				pending.put(recipe, queue);
+			}
+			queue.add(job);
+			/* Another drain once every drain of the recipe has a full batch waiting, up to one per worker */
+			int count = drains.getOrDefault(recipe, 0);
+			schedule = count < threads && queue.size() > count * batchSize;
+			if(schedule) drains.put(recipe, count + 1);
+		}
+		queueDepth.incrementAndGet();
+		if(schedule) schedule(recipe);
+		return future;
+	}
+	
+	private void schedule(String recipe) {
+		try {
+			workers.execute(() -> drain(recipe));
+		} catch (RejectedExecutionException e) {
+			List<Job> jobs = new ArrayList<Job>();
+			synchronized(pending) {
+				/* The last drain of the recipe fails what is left */
+				if(finishDrain(recipe)) {
+					Queue<Job> queue = pending.remove(recipe);
+					if(queue != null) jobs.addAll(queue);
+				}
+			}
+			queueDepth.addAndGet(-jobs.size());
+			for(Job job : jobs)
+				job.future.completeExceptionally(e);
+		}
+	}
+	
+	/* Count a drain as ended, returns whether it was the last of the recipe */
+	private boolean finishDrain(String recipe) {
+		int count = drains.get(recipe) - 1;
+		if(count > 0) {
+			drains.put(recipe, count);
+			return false;
+		}
+		drains.remove(recipe);
+		return true;
+	}
+	
+	/* Runs up to batchSize queued jobs of one recipe on one scanner, then yields to other recipes */
+	private void drain(String recipe) {
+		List<Job> batch = new ArrayList<Job>();
+		synchronized(pending) {
+			Queue<Job> queue = pending.get(recipe);
+			while(queue != null && batch.size() < batchSize && !queue.isEmpty())
+				batch.add(queue.poll());
+		}
+		queueDepth.addAndGet(-batch.size());
+		batches.incrementAndGet();
+		ImageScanner<BufferedImage> scanner = null;
+		try {
+			scanner = ScannerCache.getInstance().get(BufferedImage.class, recipe);
+		} catch (RuntimeException e) {
+			for(Job job : batch)
+				job.future.completeExceptionally(e);
+		}
+		if(scanner != null) {
+			for(Job job : batch) {
+				try {
+					BufferedImage image = scanner.run(job.image);
+					ByteArrayOutputStream output = new ByteArrayOutputStream();
+					if(!ImageIO.write(image, job.format, output)) throw new IllegalArgumentException("Unsupported format " + job.format);
+					job.future.complete(output.toByteArray());
+				} catch (Throwable e) {
+					job.future.completeExceptionally(e);
+				}
+			}
+		}
+		boolean more;
+		synchronized(pending) {
+			Queue<Job> queue = pending.get(recipe);
+			more = queue != null && !queue.isEmpty();
+			if(!more && finishDrain(recipe)) pending.remove(recipe);
+		}
+		if(more) schedule(recipe);
+	}
+	
+	/**
+	 * Get counters
+	 * @return JSON
+	 */
+	public String getMetrics() {
+		JsonObject json = new JsonObject();
+		long finished = completed.get() + failed.get();
+		json.addProperty("requests", requests.get());
+		json.addProperty("coalesced", coalesced.get());
+		json.addProperty("batches", batches.get());
+		json.addProperty("completed", completed.get());
+		json.addProperty("failed", failed.get());
+		json.addProperty("timedOut", timedOut.get());
+		json.addProperty("queueDepth", queueDepth.get());
+		json.addProperty("inFlight", inFlight.size());
+		json.addProperty("meanLatencyMillis", finished == 0 ? 0 : totalLatency.get() / 1e6 / finished);
+		json.addProperty("maxLatencyMillis", maxLatency.get() / 1e6);
+		return json.toString();
+	}
+	
+	private void handleScan(HttpExchange exchange) throws IOException {
+		try {
+			if(!"POST".equals(exchange.getRequestMethod())) {
+				send(exchange, 405, "text/plain", new byte[0]);
+				return;
+			}
+			String recipe = exchange.getRequestHeaders().getFirst("X-Scan-Recipe");
+			if(recipe == null) {
+				send(exchange, 400, "text/plain", "Missing X-Scan-Recipe".getBytes("UTF-8"));
+				return;
+			}
+			String format = "png";
+			String query = exchange.getRequestURI().getQuery();
+			if(query != null) {
+				for(String parameter : query.split("&")) {
+					if(parameter.startsWith("format=")) format = parameter.substring("format=".length());
+				}
+			}
+			byte[] image = readAll(exchange.getRequestBody());
+			try {
+				/* The job keeps running for other requests sharing it, only this request gives up */
+				send(exchange, 200, "image/" + format, submit(recipe, image, format).get(timeout, TimeUnit.NANOSECONDS));
+			} catch (TimeoutException e) {
+				timedOut.incrementAndGet();
+				send(exchange, 503, "text/plain", "Timed out".getBytes("UTF-8"));
+			} catch (ExecutionException | CompletionException e) {
+				Throwable cause = e.getCause();
+				int status = cause instanceof IllegalArgumentException || cause instanceof IllegalStateException ? 400
+						: cause instanceof RejectedExecutionException ? 503 : 500;
+				send(exchange, status, "text/plain", String.valueOf(cause).getBytes("UTF-8"));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				send(exchange, 503, "text/plain", new byte[0]);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		try {
+			send(exchange, 200, "application/json", getMetrics().getBytes("UTF-8"));
+		} finally {
+			exchange.close();
+		}
+	}
+	
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		if(body.length > 0) {
+			try(OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		}
+	}
+	
+	private static byte[] readAll(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[] buffer = new byte[65536];
+		for(int n; (n = input.read(buffer)) > 0; )
+			output.write(buffer, 0, n);
+		return output.toByteArray();
+	}
+	
+	private static class Job {
+		
+		private final String recipe, format;
+		private final byte[] image, digest;
+		private CompletableFuture<byte[]> future;
+		
+		Job(String recipe, byte[] image, String format) {
+			this.recipe = recipe;
+			this.image = image;
+			this.format = format;
+			try {
+				digest = MessageDigest.getInstance("SHA-256").digest(image);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			if(object instanceof Job) {
+				Job target = (Job) object;
+				if(target.recipe.equals(recipe) && target.format.equals(format) && Arrays.equals(target.digest, digest))
+					return true;
+			}
+			return false;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(recipe, format, Arrays.hashCode(digest));
+		}
+		
+	}
+	
+	/**
+	 * Run a server on localhost
+	 * @param args Port, worker threads, batch size, timeout in seconds
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		long timeout = args.length > 3 ? Long.parseLong(args[3]) : 60;
+		/* Loads the OpenCV natives */
+		new WarmUp<BufferedImage>(BufferedImage.class, 256, 256).run();
+		WorkerServer server = new WorkerServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads, batchSize, timeout, TimeUnit.SECONDS);
+		server.start();
+		System.out.println("Listening on " + server.getAddress());
+	}
+	
+}
@@ -16,6 +16,8 @@
  */
 package com.jun90.projects.scan.support;
 
+import java.util.Objects;
+
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -72,6 +74,11 @@ public class AbsolutePoint implements Point {
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		return Objects.hash(x, y);
+	}
+
 	@Override
 	public String toJSON() {
 		JsonObject json = new JsonObject();
@@ -16,12 +16,16 @@
  */
 package com.jun90.projects.scan.support;
 
+import java.awt.image.BufferedImage;
+import java.util.Objects;
+
 import org.opencv.core.Mat;
+import org.opencv.core.Size;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
-public class AdjustmentScanTask implements ScanTask {
+public class AdjustmentScanTask implements RasterScanTask {
 
 	private final double contrast;
 	private final int brightness;
@@ -62,6 +66,44 @@ public class AdjustmentScanTask implements ScanTask {
 		return outputMat;
 	}
 
+	@Override
+	public boolean isRasterSupported() {
+		return true;
+	}
+
+	@Override
+	public BufferedImage run(BufferedImage image) {
+		if(contrast == 1 && brightness == 0) return image;
+		/* Same rounding and saturation as Mat.convertTo */
+		byte[] table = new byte[256];
+		for(int i = 0; i < table.length; i++)
+			table[i] = (byte) Math.max(0, Math.min(255, Math.rint(i * contrast + brightness)));
+		int width = image.getWidth(), height = image.getHeight(), rowBytes = width * Rasters.PIXEL_BYTES;
+		BufferedImage outputImage = Rasters.create(width, height);
+		byte[] src = Rasters.getData(image), dst = Rasters.getData(outputImage);
+		int srcOffset = Rasters.getOffset(image), srcStride = Rasters.getStride(image);
+		for(int row = 0, d = 0; row < height; row++) {
+			for(int s = srcOffset + row * srcStride, end = s + rowBytes; s < end; s++)
+				dst[d++] = table[src[s] & 0xff];
+		}
+		return outputImage;
+	}
+
+	@Override
+	public Size getOutputSize(Size size) {
+		return new Size(size.width, size.height);
+	}
+
+	@Override
+	public long getScratchBytes(Size size, int pixelBytes) {
+		return 0;
+	}
+
+	@Override
+	public Transform getTransform(Size size) {
+		return Transform.IDENTITY;
+	}
+
 	@Override
 	public String toJSON() {
 		JsonObject json = new JsonObject();
@@ -75,10 +117,15 @@ public class AdjustmentScanTask implements ScanTask {
 	public boolean equals(Object object) {
 		if(object instanceof AdjustmentScanTask) {
 			AdjustmentScanTask target = (AdjustmentScanTask) object;
-			if(target.contrast == contrast && target.brightness == brightness)
+			if(Double.compare(target.contrast, contrast) == 0 && target.brightness == brightness)
 				return true;
 		}
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		return Objects.hash(contrast, brightness);
+	}
+
 }
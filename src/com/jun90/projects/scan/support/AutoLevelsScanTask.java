@@ -0,0 +1,186 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.awt.image.BufferedImage;
+import java.util.Objects;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class AutoLevelsScanTask implements RasterScanTask {
+
+	private final double low, high;
+	private final int step;
+	
+	/**
+	 * Construct an auto levels task
+	 * @param low Share of pixels turned black (Between 0.0 and 1.0)
+	 * @param high Share of pixels not turned white (Between 0.0 and 1.0)
+	 * @param step Only every step-th row and column is sampled
+	 * @throws IllegalArgumentException
+	 */
+	public AutoLevelsScanTask(double low, double high, int step) throws IllegalArgumentException {
+		check(low, high, step);
+		this.low = low;
+		this.high = high;
+		this.step = step;
+	}
+	
+	public AutoLevelsScanTask(String s) throws IllegalArgumentException {
+		JsonObject json = new JsonParser().parse(s).getAsJsonObject();
+		if(!json.get("type").getAsString().equals(getClass().getSimpleName()))
+			throw new IllegalArgumentException();
+		low = json.get("low").getAsDouble();
+		high = json.get("high").getAsDouble();
+		step = json.get("step").getAsInt();
+		check(low, high, step);
+	}
+	
+	/* Recipes come from clients, a step below 1 would never finish sampling */
+	private static void check(double low, double high, int step) throws IllegalArgumentException {
+		if(!(low >= 0 && high <= 1 && low < high) || step < 1)
+			throw new IllegalArgumentException();
+	}
+	
+	public double getLow() {
+		return low;
+	}
+	
+	public double getHigh() {
+		return high;
+	}
+	
+	public int getStep() {
+		return step;
+	}
+	
+	/* BGR to luminance, weights of BT.601 in 1/256 */
+	private static int getLuminance(byte[] data, int i) {
+		return ((data[i] & 0xff) * 29 + (data[i + 1] & 0xff) * 150 + (data[i + 2] & 0xff) * 77) >> 8;
+	}
+	
+	/**
+	 * Get the adjustment this task applies to an image
+	 * @param mat Source Mat
+	 * @return Adjustment task
+	 */
+	public AdjustmentScanTask getAdjustment(Mat mat) {
+		int[] histogram = new int[256];
+		byte[] row = new byte[mat.cols() * 3];
+		for(int y = 0; y < mat.rows(); y += step) {
+			mat.get(y, 0, row);
+			for(int i = 0; i < row.length; i += step * 3)
+				histogram[getLuminance(row, i)]++;
+		}
+		return getAdjustment(histogram);
+	}
+	
+	/**
+	 * Get the adjustment this task applies to an image
+	 * @param image Source image (TYPE_3BYTE_BGR)
+	 * @return Adjustment task
+	 */
+	public AdjustmentScanTask getAdjustment(BufferedImage image) {
+		int[] histogram = new int[256];
+		byte[] data = Rasters.getData(image);
+		int offset = Rasters.getOffset(image), stride = Rasters.getStride(image), rowBytes = image.getWidth() * Rasters.PIXEL_BYTES;
+		for(int y = 0; y < image.getHeight(); y += step) {
+			for(int i = offset + y * stride, end = i + rowBytes; i < end; i += step * Rasters.PIXEL_BYTES)
+				histogram[getLuminance(data, i)]++;
+		}
+		return getAdjustment(histogram);
+	}
+	
+	private AdjustmentScanTask getAdjustment(int[] histogram) {
+		long total = 0;
+		for(int count : histogram)
+			total += count;
+		int black = -1, white = -1;
+		long sum = 0;
+		for(int i = 0; i < histogram.length; i++) {
+			sum += histogram[i];
+			if(black < 0 && sum > low * total) black = i;
+			if(white < 0 && sum >= high * total) white = i;
+		}
+		if(black < 0 || white <= black) return new AdjustmentScanTask(0, 0);
+		/* Stretch [black, white] to [0, 255] around its middle, as far as AdjustmentScanTask allows */
+		double alpha = Math.min(2, 255.0 / (white - black));
+		double beta = 127.5 - alpha * (black + white) / 2;
+		return new AdjustmentScanTask(alpha - 1, Math.max(-1, Math.min(1, beta / 256)));
+	}
+	
+	@Override
+	public Mat run(Mat mat) {
+		return getAdjustment(mat).run(mat);
+	}
+	
+	@Override
+	public boolean isRasterSupported() {
+		return true;
+	}
+	
+	@Override
+	public BufferedImage run(BufferedImage image) {
+		return getAdjustment(image).run(image);
+	}
+	
+	@Override
+	public Size getOutputSize(Size size) {
+		return new Size(size.width, size.height);
+	}
+	
+	@Override
+	public long getScratchBytes(Size size, int pixelBytes) {
+		return 0;
+	}
+	
+	@Override
+	public Transform getTransform(Size size) {
+		/* The levels depend on the whole image */
+		return null;
+	}
+	
+	@Override
+	public String toJSON() {
+		JsonObject json = new JsonObject();
+		json.addProperty("type", getClass().getSimpleName());
+		json.addProperty("low", low);
+		json.addProperty("high", high);
+		json.addProperty("step", step);
+		return json.toString();
+	}
+	
+	@Override
+	public boolean equals(Object object) {
+		if(object instanceof AutoLevelsScanTask) {
+			AutoLevelsScanTask target = (AutoLevelsScanTask) object;
+			if(Double.compare(target.low, low) == 0 && Double.compare(target.high, high) == 0 && target.step == step)
+				return true;
+		}
+		return false;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(low, high, step);
+	}
+	
+}
@@ -16,6 +16,8 @@
  */
 package com.jun90.projects.scan.support;
 
+import java.util.Arrays;
+
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
@@ -78,16 +80,39 @@ public class CorrectionScanTask implements ScanTask {
 		return Math.sqrt((p2.getX() - p1.getX()) * (p2.getX() - p1.getX()) + (p2.getY() - p1.getY()) * (p2.getY() - p1.getY()));
 	}
 	
-	@Override
-	public Mat run(Mat mat) {
-		if(relativePoint[0].getX() == 0 && relativePoint[0].getY() == 0
+	private boolean isOriginal() {
+		return relativePoint[0].getX() == 0 && relativePoint[0].getY() == 0
 				&& relativePoint[1].getX() == 1 && relativePoint[1].getY() == 0
 				&& relativePoint[2].getX() == 1 && relativePoint[2].getY() == 1
-				&& relativePoint[3].getX() == 0 && relativePoint[3].getY() == 1)
-			return mat;
+				&& relativePoint[3].getX() == 0 && relativePoint[3].getY() == 1;
+	}
+	
+	private AbsolutePoint[] getAbsolutePoints(Size size) {
 		AbsolutePoint[] absolutePoint = new AbsolutePoint[relativePoint.length];
 		for(int i = 0; i < relativePoint.length; i++)
-			absolutePoint[i] = new AbsolutePoint(relativePoint[i], mat.cols(), mat.rows());
+			absolutePoint[i] = new AbsolutePoint(relativePoint[i], (int) size.width, (int) size.height);
+		return absolutePoint;
+	}
+	
+	@Override
+	public Mat run(Mat mat) {
+		if(isOriginal()) return mat;
+		AbsolutePoint[] absolutePoint = getAbsolutePoints(mat.size());
+		Size size = getOutputSize(mat.size());
+		MatOfPoint2f src = new MatOfPoint2f(new Point(absolutePoint[0].getX(), absolutePoint[0].getY()), new Point(absolutePoint[1].getX(), absolutePoint[1].getY()), 
+				new Point(absolutePoint[2].getX(), absolutePoint[2].getY()), new Point(absolutePoint[3].getX(), absolutePoint[3].getY()));
+		MatOfPoint2f dst = new MatOfPoint2f(new Point(0, 0), new Point(size.width, 0), 
+				new Point(size.width, size.height), new Point(0, size.height));
+		Mat m = Imgproc.getPerspectiveTransform(src, dst);
+		Mat outputMat = new Mat();
+		Imgproc.warpPerspective(mat, outputMat, m, size);
+		return outputMat;
+	}
+
+	@Override
+	public Size getOutputSize(Size size) {
+		if(isOriginal()) return new Size(size.width, size.height);
+		AbsolutePoint[] absolutePoint = getAbsolutePoints(size);
 		double diagonal1 = getLength(absolutePoint[0], absolutePoint[2]), diagonal2 = getLength(absolutePoint[1], absolutePoint[3]);
 		double diagonal = diagonal1 > diagonal2 ? diagonal1 : diagonal2;
 		double leftEdge = getLength(absolutePoint[0], absolutePoint[3]), rightEdge = getLength(absolutePoint[1], absolutePoint[2]);
@@ -99,14 +124,23 @@ public class CorrectionScanTask implements ScanTask {
 		double area1 = width1 * height1, area2 = width2 * height2;
 		double width = area1 > area2 ? width1 : width2;
 		double height = area1 > area2 ? height1 : height2;
-		MatOfPoint2f src = new MatOfPoint2f(new Point(absolutePoint[0].getX(), absolutePoint[0].getY()), new Point(absolutePoint[1].getX(), absolutePoint[1].getY()), 
-				new Point(absolutePoint[2].getX(), absolutePoint[2].getY()), new Point(absolutePoint[3].getX(), absolutePoint[3].getY()));
-		MatOfPoint2f dst = new MatOfPoint2f(new Point(0, 0), new Point(width, 0), 
-				new Point(width, height), new Point(0, height));
-		Mat m = Imgproc.getPerspectiveTransform(src, dst);
-		Mat outputMat = new Mat();
-		Imgproc.warpPerspective(mat, outputMat, m, new Size(width, height));
-		return outputMat;
+		/* warpPerspective truncates the size */
+		return new Size((int) width, (int) height);
+	}
+
+	@Override
+	public long getScratchBytes(Size size, int pixelBytes) {
+		return 0;
+	}
+
+	@Override
+	public Transform getTransform(Size size) {
+		if(isOriginal()) return Transform.IDENTITY;
+		AbsolutePoint[] absolutePoint = getAbsolutePoints(size);
+		Size outputSize = getOutputSize(size);
+		return Transform.perspective(new double[] { absolutePoint[0].getX(), absolutePoint[0].getY(), absolutePoint[1].getX(), absolutePoint[1].getY(),
+						absolutePoint[2].getX(), absolutePoint[2].getY(), absolutePoint[3].getX(), absolutePoint[3].getY() },
+				new double[] { 0, 0, outputSize.width, 0, outputSize.width, outputSize.height, 0, outputSize.height });
 	}
 
 	@Override
@@ -132,4 +166,9 @@ public class CorrectionScanTask implements ScanTask {
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(relativePoint);
+	}
+
 }
@@ -16,13 +16,17 @@
  */
 package com.jun90.projects.scan.support;
 
+import java.awt.image.BufferedImage;
+import java.util.Objects;
+
 import org.opencv.core.Mat;
 import org.opencv.core.Rect;
+import org.opencv.core.Size;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
-public class CroppingScanTask implements ScanTask {
+public class CroppingScanTask implements RasterScanTask {
 
 	private final double x, y, width, height;
 	
@@ -81,6 +85,38 @@ public class CroppingScanTask implements ScanTask {
 		return outputMat;
 	}
 
+	@Override
+	public boolean isRasterSupported() {
+		return true;
+	}
+
+	@Override
+	public BufferedImage run(BufferedImage image) {
+		if(x == 0 && y == 0 && width == 1 && height == 1) return image;
+		/* A sub-image shares the raster, nothing is copied */
+		return image.getSubimage((int) Math.round(image.getWidth() * x),
+				(int) Math.round(image.getHeight() * y),
+				(int) Math.round(image.getWidth() * width), 
+				(int) Math.round(image.getHeight() * height));
+	}
+
+	@Override
+	public Size getOutputSize(Size size) {
+		if(x == 0 && y == 0 && width == 1 && height == 1) return new Size(size.width, size.height);
+		return new Size(Math.round(size.width * width), Math.round(size.height * height));
+	}
+
+	@Override
+	public long getScratchBytes(Size size, int pixelBytes) {
+		return 0;
+	}
+
+	@Override
+	public Transform getTransform(Size size) {
+		if(x == 0 && y == 0 && width == 1 && height == 1) return Transform.IDENTITY;
+		return Transform.translate(-Math.round(size.width * x), -Math.round(size.height * y));
+	}
+
 	@Override
 	public String toJSON() {
 		JsonObject json = new JsonObject();
@@ -96,10 +132,16 @@ public class CroppingScanTask implements ScanTask {
 	public boolean equals(Object object) {
 		if(object instanceof CroppingScanTask) {
 			CroppingScanTask target = (CroppingScanTask) object;
-			if(target.x == x && target.y == y && target.width == target.width && target.height == target.height)
+			if(Double.compare(target.x, x) == 0 && Double.compare(target.y, y) == 0
+					&& Double.compare(target.width, width) == 0 && Double.compare(target.height, height) == 0)
 				return true;
 		}
 		return false;
 	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(x, y, width, height);
+	}
 	
 }
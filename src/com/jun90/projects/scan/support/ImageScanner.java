@@ -19,13 +19,30 @@ package com.jun90.projects.scan.support;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.opencv.android.Utils;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
 import org.opencv.highgui.HighGui;
+import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 import com.google.gson.JsonArray;
@@ -37,8 +54,14 @@ import android.graphics.Bitmap;
 
 public class ImageScanner<T> {
 
+	/* Every task works on CV_8UC3 */
+	private static final int PIXEL_BYTES = 3;
+	private static volatile MemoryBudget memoryBudget;
+	private static ScheduledExecutorService deadlineTimer;
+	
 	private Class<T> type;
 	private List<ScanTask> tasks = new LinkedList<ScanTask>();
+	private boolean immutable = false;
 	
 	public ImageScanner(Class<T> type) throws RuntimeException {
 		this.type = type;
@@ -57,6 +80,18 @@ public class ImageScanner<T> {
 	
 	public ImageScanner(Class<T> type, String s) throws RuntimeException {
 		this(type);
+		tasks.addAll(parseTasks(s));
+	}
+	
+	/* Used by ScannerCache, the tasks can not be changed afterwards */
+	ImageScanner(Class<T> type, List<ScanTask> tasks) throws RuntimeException {
+		this(type);
+		this.tasks = Collections.unmodifiableList(new ArrayList<ScanTask>(tasks));
+		immutable = true;
+	}
+	
+	static List<ScanTask> parseTasks(String s) throws IllegalArgumentException {
+		List<ScanTask> tasks = new ArrayList<ScanTask>();
 		JsonObject json = new JsonParser().parse(s).getAsJsonObject();
 		JsonArray taskArray = json.get("tasks").getAsJsonArray();
 		for(JsonElement element : taskArray) {
@@ -70,70 +105,515 @@ public class ImageScanner<T> {
 				throw new IllegalArgumentException();
 			}
 		}
+		return tasks;
 	}
 	
 	/**
 	 * Add task
 	 * @param task Task
+	 * @throws UnsupportedOperationException If the scanner comes from ScannerCache
 	 */
-	public synchronized boolean addTask(ScanTask task) {
+	public synchronized boolean addTask(ScanTask task) throws UnsupportedOperationException {
+		if(immutable) throw new UnsupportedOperationException();
 		return tasks.add(task);
 	}
 
 	/**
 	 * Removes all of the tasks
+	 * @throws UnsupportedOperationException If the scanner comes from ScannerCache
 	 */
-	public synchronized void clear() {
+	public synchronized void clear() throws UnsupportedOperationException {
+		if(immutable) throw new UnsupportedOperationException();
 		tasks.clear();
 	}
 	
-	private synchronized Mat run(Mat mat) throws IllegalArgumentException {
+	public boolean isImmutable() {
+		return immutable;
+	}
+	
+	synchronized List<ScanTask> getTasks() {
+		/* Immutable task lists can be shared without copying */
+		if(immutable) return tasks;
+		return new ArrayList<ScanTask>(tasks);
+	}
+	
+	private static Mat run(Mat mat, List<ScanTask> tasks, Future<?> future) throws CancellationException {
 		for(ScanTask task : tasks) {
-			mat = task.run(mat);
-			if(mat == null) throw new RuntimeException();
+			if(future != null && future.isDone()) {
+				mat.release();
+				throw new CancellationException();
+			}
+			Mat outputMat;
+			try {
+				outputMat = task.run(mat);
+			} catch (RuntimeException e) {
+				mat.release();
+				throw e;
+			}
+			if(outputMat == null) {
+				mat.release();
+				throw new RuntimeException();
+			}
+			/* Free intermediate results now instead of waiting for the GC */
+			if(outputMat != mat) mat.release();
+			mat = outputMat;
 		}
 		return mat;
 	}
 
 	/**
-	 * Run tasks
-	 * @param image Source image
-	 * @return Image
-	 * @throws IllegalArgumentException
+	 * Set the memory budget shared by all scanners
+	 * @param budget Budget, null to run without limit
 	 */
-	@SuppressWarnings("unchecked")
-	public synchronized T run(T image) throws IllegalArgumentException {
-		if(image == null) throw new IllegalArgumentException();
+	public static void setMemoryBudget(MemoryBudget budget) {
+		memoryBudget = budget;
+	}
+	
+	public static MemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	/**
+	 * Get output size without running the tasks
+	 * @param size Source size
+	 * @return Size
+	 */
+	public synchronized Size getOutputSize(Size size) {
+		for(ScanTask task : tasks)
+			size = task.getOutputSize(size);
+		return size;
+	}
+	
+	/**
+	 * Estimate the peak memory of running the tasks without running them
+	 * @param size Source size
+	 * @return Bytes
+	 */
+	public synchronized long estimate(Size size) {
+		return estimate(tasks, size);
+	}
+	
+	static long estimate(List<ScanTask> tasks, Size size) {
+		long input = getBytes(size);
+		/* The source and the result exist twice while converting images */
+		long peak = input * 2;
+		for(ScanTask task : tasks) {
+			Size outputSize = task.getOutputSize(size);
+			long output = getBytes(outputSize);
+			peak = Math.max(peak, input + output + task.getScratchBytes(size, PIXEL_BYTES));
+			size = outputSize;
+			input = output;
+		}
+		return Math.max(peak, input * 2);
+	}
+	
+	private static long getBytes(Size size) {
+		return (long) size.width * (long) size.height * PIXEL_BYTES;
+	}
+
+	Size getSize(T image) {
+		try {
+			if(type == Class.forName("android.graphics.Bitmap")) {
+				Bitmap source = (Bitmap) image;
+				return new Size(source.getWidth(), source.getHeight());
+			}
+		} catch (ClassNotFoundException e) { }
+		try {
+			if(type == Class.forName("java.awt.image.BufferedImage")) {
+				BufferedImage source = (BufferedImage) image;
+				return new Size(source.getWidth(), source.getHeight());
+			}
+		} catch (ClassNotFoundException e) { }
+		return null;
+	}
+	
+	Mat toMat(T image) throws IllegalArgumentException {
 		try {
 			if(type == Class.forName("android.graphics.Bitmap")) {
 				Bitmap source = (Bitmap) image;
-				/* Image to Mat */
 				Mat mat = new Mat(), t = new Mat();
 				Utils.bitmapToMat(source, t);
 				Imgproc.cvtColor(t, mat, Imgproc.COLOR_BGRA2BGR);
-				/* Work */
-				mat = run(mat);
-				/* Mat to Image */
-				Bitmap bitmap = Bitmap.createBitmap(mat.cols(), mat.rows(), Bitmap.Config.ARGB_8888);
-				Utils.matToBitmap(mat, bitmap);
-				return (T) bitmap;
+				t.release();
+				return mat;
 			}
 		} catch (ClassNotFoundException e) { }
 		try {
 			if(type == Class.forName("java.awt.image.BufferedImage")) {
 				BufferedImage source = (BufferedImage) image;
 				if(source.getType() != BufferedImage.TYPE_3BYTE_BGR) throw new IllegalArgumentException();
-				/* Image to Mat */
 				Mat mat = new Mat(source.getHeight(), source.getWidth(), CvType.CV_8UC3);
 				mat.put(0, 0, ((DataBufferByte) source.getRaster().getDataBuffer()).getData());
-				/* Work */
-				mat = run(mat);
-				/* Mat to Image */
+				return mat;
+			}
+		} catch (ClassNotFoundException e) { }
+		return null;
+	}
+	
+	/* Converts only a region of the source */
+	private Mat toMat(T image, Rect region) throws IllegalArgumentException {
+		try {
+			if(type == Class.forName("android.graphics.Bitmap")) {
+				Bitmap source = Bitmap.createBitmap((Bitmap) image, region.x, region.y, region.width, region.height);
+				Mat mat = new Mat(), t = new Mat();
+				Utils.bitmapToMat(source, t);
+				Imgproc.cvtColor(t, mat, Imgproc.COLOR_BGRA2BGR);
+				t.release();
+				return mat;
+			}
+		} catch (ClassNotFoundException e) { }
+		try {
+			if(type == Class.forName("java.awt.image.BufferedImage")) {
+				BufferedImage source = (BufferedImage) image;
+				if(source.getType() != BufferedImage.TYPE_3BYTE_BGR) throw new IllegalArgumentException();
+				Mat mat = new Mat(region.height, region.width, CvType.CV_8UC3);
+				byte[] data = Rasters.getData(source);
+				int offset = Rasters.getOffset(source), stride = Rasters.getStride(source);
+				for(int row = 0; row < region.height; row++)
+					mat.put(row, 0, data, offset + (region.y + row) * stride + region.x * Rasters.PIXEL_BYTES, region.width * Rasters.PIXEL_BYTES);
+				return mat;
+			}
+		} catch (ClassNotFoundException e) { }
+		return null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	T toImage(Mat mat) {
+		try {
+			if(type == Class.forName("android.graphics.Bitmap")) {
+				Bitmap bitmap = Bitmap.createBitmap(mat.cols(), mat.rows(), Bitmap.Config.ARGB_8888);
+				Utils.matToBitmap(mat, bitmap);
+				return (T) bitmap;
+			}
+		} catch (ClassNotFoundException e) { }
+		try {
+			if(type == Class.forName("java.awt.image.BufferedImage")) {
 				return (T) HighGui.toBufferedImage(mat);
 			}
 		} catch (ClassNotFoundException e) { }
 		return null;
 	}
+
+	/**
+	 * Run tasks
+	 * @param image Source image
+	 * @return Image
+	 * @throws IllegalArgumentException
+	 * @throws RejectedExecutionException If the memory budget rejects the job
+	 */
+	public T run(T image) throws IllegalArgumentException, RejectedExecutionException {
+		if(image == null) throw new IllegalArgumentException();
+		return run(image, getTasks(), null);
+	}
+	
+	private T run(T image, List<ScanTask> tasks, Future<?> future) throws IllegalArgumentException, RejectedExecutionException {
+		MemoryBudget budget = memoryBudget;
+		long bytes = 0;
+		if(budget != null) {
+			bytes = estimate(tasks, getSize(image));
+			try {
+				acquire(budget, bytes);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		}
+		try {
+			/* Simple tasks on BufferedImage skip the Mat */
+			if(isRasterSupported(tasks)) {
+				T result = runRaster(image, tasks, future);
+				if(result != null) return result;
+			}
+			/* Image to Mat */
+			Mat mat = toMat(image);
+			if(mat == null) return null;
+			/* Work */
+			mat = run(mat, tasks, future);
+			/* Mat to Image */
+			T result = toImage(mat);
+			mat.release();
+			return result;
+		} finally {
+			if(budget != null) budget.release(bytes);
+		}
+	}
+	
+	static boolean isRasterSupported(List<ScanTask> tasks) {
+		for(ScanTask task : tasks) {
+			if(!(task instanceof RasterScanTask) || !((RasterScanTask) task).isRasterSupported())
+				return false;
+		}
+		return true;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private T runRaster(T image, List<ScanTask> tasks, Future<?> future) throws IllegalArgumentException, CancellationException {
+		try {
+			if(type == Class.forName("java.awt.image.BufferedImage")) {
+				BufferedImage source = (BufferedImage) image;
+				if(source.getType() != BufferedImage.TYPE_3BYTE_BGR) throw new IllegalArgumentException();
+				BufferedImage outputImage = source;
+				for(ScanTask task : tasks) {
+					if(future != null && future.isDone()) throw new CancellationException();
+					outputImage = ((RasterScanTask) task).run(outputImage);
+					if(outputImage == null) throw new RuntimeException();
+				}
+				/* Crops are views, never return the raster of the source */
+				if(Rasters.getData(outputImage) == Rasters.getData(source))
+					outputImage = Rasters.copy(outputImage);
+				return (T) outputImage;
+			}
+		} catch (ClassNotFoundException e) { }
+		return null;
+	}
+	
+	/**
+	 * Render a region of the result without rendering the rest.
+	 * Geometric tasks are applied as one warp from the part of the source the region maps back onto
+	 * and clipped like running them one by one would, tasks that only change pixel values run on the 
+	 * source part or the rendered region as described in WarpPlan.
+	 * Tasks depending on the whole image, like AutoLevelsScanTask, make it render the whole result.
+	 * @param image Source image
+	 * @param viewport Region of the result in its pixels
+	 * @param scale Scale of the rendered region
+	 * @return Image of viewport.width * scale by viewport.height * scale
+	 * @throws IllegalArgumentException
+	 */
+	public T render(T image, Rect viewport, double scale) throws IllegalArgumentException {
+		if(image == null || viewport == null || viewport.width <= 0 || viewport.height <= 0 || scale <= 0)
+			throw new IllegalArgumentException();
+		List<ScanTask> tasks = getTasks();
+		Size size = getSize(image), outputSize = new Size(Math.max(1, Math.round(viewport.width * scale)), Math.max(1, Math.round(viewport.height * scale)));
+		/* Scaling the viewport around pixel corners, like Imgproc.resize */
+		Transform view = Transform.translate(-viewport.x + 0.5, -viewport.y + 0.5)
+				.then(Transform.scale(outputSize.width / viewport.width, outputSize.height / viewport.height))
+				.then(Transform.translate(-0.5, -0.5));
+		WarpPlan plan = WarpPlan.create(tasks, size);
+		if(plan == null) {
+			/* Render everything and warp the viewport out of it */
+			Mat mat = run(toMat(image), tasks, null);
+			Mat outputMat = warp(mat, view, outputSize);
+			mat.release();
+			T result = toImage(outputMat);
+			outputMat.release();
+			return result;
+		}
+		/* Only the part of the source the viewport maps back onto is converted */
+		Rect region = plan.getTransform().then(view).invert().getBounds(-0.5, -0.5, outputSize.width, outputSize.height, size);
+		Mat mat = null;
+		if(region.width > 0 && region.height > 0) mat = toMat(image, region);
+		Mat outputMat;
+		try {
+			outputMat = plan.render(mat, region, view, outputSize);
+		} finally {
+			if(mat != null) mat.release();
+		}
+		T result = toImage(outputMat);
+		outputMat.release();
+		return result;
+	}
+	
+	private static Mat warp(Mat mat, Transform transform, Size size) {
+		Mat matrix = new Mat(3, 3, CvType.CV_64F), outputMat = new Mat();
+		matrix.put(0, 0, transform.getMatrix());
+		Imgproc.warpPerspective(mat, outputMat, matrix, size);
+		matrix.release();
+		return outputMat;
+	}
+	
+	/* Idle Mats of MatPool are counted by the budget, they are given back before a job has to wait */
+	static void acquire(MemoryBudget budget, long bytes) throws RejectedExecutionException, InterruptedException {
+		if(budget.tryAcquire(bytes)) return;
+		MatPool.getInstance().clear();
+		budget.acquire(bytes);
+	}
+	
+	/**
+	 * Decode and run tasks.
+	 * When the tasks shrink the image by at least 2, 4 or 8 times the image is decoded at that reduced size,
+	 * the result may then differ from decoding in full by one pixel in width or height.
+	 * The memory budget is charged only after decoding, because the size is not known before,
+	 * so the decoded image itself is not held back by the budget.
+	 * @param data Encoded image
+	 * @return Image
+	 * @throws IllegalArgumentException
+	 * @throws RejectedExecutionException If the memory budget rejects the job
+	 */
+	public T run(byte[] data) throws IllegalArgumentException, RejectedExecutionException {
+		if(data == null) throw new IllegalArgumentException();
+		List<ScanTask> tasks = getTasks();
+		int reduction = getReduction(tasks);
+		int flag = Imgcodecs.IMREAD_COLOR;
+		if(reduction == 8) flag = Imgcodecs.IMREAD_REDUCED_COLOR_8;
+		else if(reduction == 4) flag = Imgcodecs.IMREAD_REDUCED_COLOR_4;
+		else if(reduction == 2) flag = Imgcodecs.IMREAD_REDUCED_COLOR_2;
+		MatOfByte buffer = new MatOfByte(data);
+		Mat mat = Imgcodecs.imdecode(buffer, flag);
+		buffer.release();
+		if(mat.empty()) throw new IllegalArgumentException();
+		if(reduction > 1) tasks = reduce(tasks, reduction);
+		MemoryBudget budget = memoryBudget;
+		long bytes = 0;
+		if(budget != null) {
+			/* The size is only known once decoded */
+			bytes = estimate(tasks, mat.size());
+			try {
+				acquire(budget, bytes);
+			} catch (InterruptedException e) {
+				mat.release();
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		}
+		try {
+			mat = run(mat, tasks, null);
+			T result = toImage(mat);
+			mat.release();
+			return result;
+		} finally {
+			if(budget != null) budget.release(bytes);
+		}
+	}
+	
+	/**
+	 * Get how many times smaller the source can be decoded without losing detail in the result.
+	 * Tasks before the first zoom must not depend on the resolution,
+	 * and the image must stay that many times smaller from the first zoom on.
+	 */
+	static int getReduction(List<ScanTask> tasks) {
+		double scale = 1, maxScale = 0;
+		boolean zoomed = false;
+		for(ScanTask task : tasks) {
+			if(task instanceof ZoomScanTask) {
+				ZoomScanTask zoom = (ZoomScanTask) task;
+				/* max(x, y) bounds the scale along any direction, even after rotations */
+				scale *= Math.max(zoom.getX(), zoom.getY());
+				/* Every later step must stay at or below the reduced resolution, not just one of them */
+				maxScale = Math.max(maxScale, scale);
+				zoomed = true;
+			} else if(!zoomed && !(task instanceof AdjustmentScanTask || task instanceof AutoLevelsScanTask || task instanceof CorrectionScanTask
+					|| task instanceof CroppingScanTask || task instanceof MirrorScanTask || task instanceof RotatingScanTask)) {
+				return 1;
+			}
+		}
+		if(!zoomed) return 1;
+		for(int reduction = 8; reduction > 1; reduction /= 2) {
+			if(maxScale * reduction <= 1) return reduction;
+		}
+		return 1;
+	}
+	
+	/* The first zoom makes up for the reduced decode, all other tasks use relative coordinates */
+	private static List<ScanTask> reduce(List<ScanTask> tasks, int reduction) {
+		List<ScanTask> reducedTasks = new ArrayList<ScanTask>(tasks);
+		for(int i = 0; i < reducedTasks.size(); i++) {
+			if(reducedTasks.get(i) instanceof ZoomScanTask) {
+				ZoomScanTask zoom = (ZoomScanTask) reducedTasks.get(i);
+				reducedTasks.set(i, new ZoomScanTask(zoom.getX() * reduction, zoom.getY() * reduction));
+				break;
+			}
+		}
+		return reducedTasks;
+	}
+	
+	/**
+	 * Run tasks in the common pool
+	 * @param image Source image
+	 * @return Future of the image
+	 */
+	public CompletableFuture<T> runAsync(T image) {
+		return runAsync(image, ForkJoinPool.commonPool(), -1, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Run tasks in the common pool with a deadline
+	 * @param image Source image
+	 * @param timeout Time before the future fails with TimeoutException, negative for no deadline
+	 * @param unit Unit of timeout
+	 * @return Future of the image
+	 */
+	public CompletableFuture<T> runAsync(T image, long timeout, TimeUnit unit) {
+		return runAsync(image, ForkJoinPool.commonPool(), timeout, unit);
+	}
+	
+	/**
+	 * Run tasks in an executor with a deadline.
+	 * Cancelling the future or passing the deadline stops the job before the next task
+	 * and frees its intermediate results.
+	 * @param image Source image
+	 * @param executor Executor
+	 * @param timeout Time before the future fails with TimeoutException, negative for no deadline
+	 * @param unit Unit of timeout
+	 * @return Future of the image
+	 * @throws IllegalArgumentException
+	 */
+	public CompletableFuture<T> runAsync(final T image, Executor executor, long timeout, TimeUnit unit) throws IllegalArgumentException {
+		if(image == null) throw new IllegalArgumentException();
+		final List<ScanTask> tasks = getTasks();
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		final Job job = new Job();
+		future.whenComplete((result, e) -> job.interrupt());
+		if(timeout >= 0) {
+			final ScheduledFuture<?> deadline = getDeadlineTimer().schedule(
+					() -> future.completeExceptionally(new TimeoutException()), timeout, unit);
+			future.whenComplete((result, e) -> deadline.cancel(false));
+		}
+		try {
+			executor.execute(() -> {
+				if(!job.start()) return;
+				try {
+					future.complete(run(image, tasks, future));
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				} finally {
+					job.finish();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	private static synchronized ScheduledExecutorService getDeadlineTimer() {
+		if(deadlineTimer == null) {
+			deadlineTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "ImageScanner-Deadline");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return deadlineTimer;
+	}
+	
+	/* Interrupts the worker of a job that finished early so long tasks can stop */
+	private static class Job {
+		
+		private Thread thread;
+		private boolean done, interrupted;
+		
+		synchronized boolean start() {
+			if(done) return false;
+			thread = Thread.currentThread();
+			return true;
+		}
+		
+		synchronized void interrupt() {
+			done = true;
+			if(thread != null && thread != Thread.currentThread()) {
+				thread.interrupt();
+				interrupted = true;
+			}
+		}
+		
+		synchronized void finish() {
+			done = true;
+			thread = null;
+			/* Do not leak the interrupt into the next job of the worker */
+			if(interrupted) Thread.interrupted();
+		}
+		
+	}
 	
 	public synchronized String toJSON() {
 		JsonObject json = new JsonObject();
@@ -0,0 +1,164 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+
+/**
+ * Reuses scratch Mats of the same size and type between task runs.
+ * Idle Mats are bounded by bytes, the least recently released ones are evicted first,
+ * and they are counted by the memory budget of ImageScanner while idle.
+ */
+public class MatPool {
+
+	private static final MatPool instance = new MatPool(256L << 20);
+	
+	private final long capacity;
+	/* Least recently released first */
+	private final LinkedList<Entry> idle = new LinkedList<Entry>();
+	private long used = 0;
+	
+	/**
+	 * Construct a pool, unlike the process-wide pool it is not cleared when a job waits for the memory budget
+	 * @param capacity Most bytes of idle Mats kept, others are released
+	 * @throws IllegalArgumentException
+	 */
+	public MatPool(long capacity) throws IllegalArgumentException {
+		if(capacity < 0) throw new IllegalArgumentException();
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Get the process-wide pool, keeping up to 256 MB
+	 * @return Pool
+	 */
+	public static MatPool getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Take a Mat, its content is undefined
+	 * @param rows Rows
+	 * @param cols Columns
+	 * @param type Type
+	 * @return Mat
+	 */
+	public Mat acquire(int rows, int cols, int type) {
+		Entry entry = null;
+		synchronized(this) {
+			Iterator<Entry> iterator = idle.descendingIterator();
+			while(iterator.hasNext()) {
+				Entry next = iterator.next();
+				if(next.mat.rows() == rows && next.mat.cols() == cols && next.mat.type() == type) {
+					iterator.remove();
+					used -= next.bytes;
+					entry = next;
+					break;
+				}
+			}
+		}
+		if(entry == null) return new Mat(rows, cols, type);
+		/* The job taking it has counted it already */
+		if(entry.budget != null) entry.budget.release(entry.bytes);
+		return entry.mat;
+	}
+	
+	/**
+	 * Give back a Mat taken from acquire
+	 * @param mat Mat
+	 */
+	public void release(Mat mat) {
+		long bytes = mat.total() * mat.elemSize();
+		MemoryBudget budget = ImageScanner.getMemoryBudget();
+		if(bytes > capacity || (budget != null && !budget.tryAcquire(bytes))) {
+			mat.release();
+			return;
+		}
+		List<Entry> evicted = new ArrayList<Entry>();
+		synchronized(this) {
+			idle.addLast(new Entry(mat, bytes, budget));
+			used += bytes;
+			while(used > capacity) {
+				Entry eldest = idle.removeFirst();
+				used -= eldest.bytes;
+				evicted.add(eldest);
+			}
+		}
+		free(evicted);
+	}
+	
+	/**
+	 * Allocate Mats ahead of use, as many as fit
+	 * @param rows Rows
+	 * @param cols Columns
+	 * @param type Type
+	 * @param count Mats
+	 */
+	public void prefill(int rows, int cols, int type, int count) {
+		for(int i = 0; i < count; i++)
+			release(new Mat(rows, cols, type));
+	}
+	
+	/**
+	 * Get the bytes of idle Mats
+	 * @return Bytes
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+	
+	/**
+	 * Release all of the idle Mats
+	 */
+	public void clear() {
+		List<Entry> evicted;
+		synchronized(this) {
+			evicted = new ArrayList<Entry>(idle);
+			idle.clear();
+			used = 0;
+		}
+		free(evicted);
+	}
+	
+	private static void free(List<Entry> entries) {
+		for(Entry entry : entries) {
+			entry.mat.release();
+			if(entry.budget != null) entry.budget.release(entry.bytes);
+		}
+	}
+	
+	private static class Entry {
+		
+		private final Mat mat;
+		private final long bytes;
+		/* Budget charged for the Mat while idle */
+		private final MemoryBudget budget;
+		
+		Entry(Mat mat, long bytes, MemoryBudget budget) {
+			this.mat = mat;
+			this.bytes = bytes;
+			this.budget = budget;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,116 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class MemoryBudget {
+
+	private final long capacity;
+	private final long timeout;
+	private long used = 0;
+	/* Jobs waiting for memory, admitted in arrival order so a large job is not starved by smaller ones */
+	private final Deque<Object> queue = new ArrayDeque<Object>();
+	
+	/**
+	 * Construct a budget that queues jobs until there is enough memory
+	 * @param capacity Capacity in bytes
+	 * @throws IllegalArgumentException
+	 */
+	public MemoryBudget(long capacity) throws IllegalArgumentException {
+		if(capacity <= 0) throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.timeout = -1;
+	}
+	
+	/**
+	 * Construct a budget that rejects jobs which have waited longer than timeout
+	 * @param capacity Capacity in bytes
+	 * @param timeout Longest time to wait, 0 to reject at once when there is not enough memory
+	 * @param unit Unit of timeout
+	 * @throws IllegalArgumentException
+	 */
+	public MemoryBudget(long capacity, long timeout, TimeUnit unit) throws IllegalArgumentException {
+		if(capacity <= 0 || timeout < 0) throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.timeout = unit.toNanos(timeout);
+	}
+	
+	public long getCapacity() {
+		return capacity;
+	}
+	
+	public synchronized long getUsed() {
+		return used;
+	}
+	
+	/**
+	 * Admit a job if there is enough memory now and no other job is waiting
+	 * @param bytes Bytes
+	 * @return Whether the job is admitted
+	 */
+	public synchronized boolean tryAcquire(long bytes) {
+		if(bytes < 0) throw new IllegalArgumentException();
+		if(!queue.isEmpty() || used + bytes > capacity) return false;
+		used += bytes;
+		return true;
+	}
+	
+	/**
+	 * Admit a job, waiting behind earlier jobs and for memory to be released if needed
+	 * @param bytes Bytes
+	 * @throws RejectedExecutionException If the job can never fit or has waited too long
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire(long bytes) throws RejectedExecutionException, InterruptedException {
+		if(bytes < 0) throw new IllegalArgumentException();
+		if(bytes > capacity) throw new RejectedExecutionException("Job needs " + bytes + " bytes, budget is " + capacity);
+		Object ticket = new Object();
+		queue.addLast(ticket);
+		long deadline = System.nanoTime() + timeout;
+		try {
+			while(queue.peekFirst() != ticket || used + bytes > capacity) {
+				if(timeout < 0) {
+					wait();
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) throw new RejectedExecutionException("Timed out waiting for " + bytes + " bytes");
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+			}
+			used += bytes;
+		} finally {
+			/* Admitted or given up, either way the next job may now be at the head */
+			queue.remove(ticket);
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Return memory of a finished job
+	 * @param bytes Bytes
+	 */
+	public synchronized void release(long bytes) {
+		if(bytes < 0 || bytes > used) throw new IllegalArgumentException();
+		used -= bytes;
+		notifyAll();
+	}
+	
+}
@@ -16,13 +16,17 @@
  */
 package com.jun90.projects.scan.support;
 
+import java.awt.image.BufferedImage;
+import java.util.Objects;
+
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.Size;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
-public class MirrorScanTask implements ScanTask {
+public class MirrorScanTask implements RasterScanTask {
 
 	private final boolean x, y;
 	
@@ -68,6 +72,51 @@ public class MirrorScanTask implements ScanTask {
 		return outputMat;
 	}
 
+	@Override
+	public boolean isRasterSupported() {
+		return true;
+	}
+
+	@Override
+	public BufferedImage run(BufferedImage image) {
+		if(!x && !y) return image;
+		int width = image.getWidth(), height = image.getHeight(), rowBytes = width * Rasters.PIXEL_BYTES;
+		BufferedImage outputImage = Rasters.create(width, height);
+		byte[] src = Rasters.getData(image), dst = Rasters.getData(outputImage);
+		int srcOffset = Rasters.getOffset(image), srcStride = Rasters.getStride(image);
+		for(int row = 0, d = 0; row < height; row++) {
+			int s = srcOffset + (y ? height - 1 - row : row) * srcStride;
+			if(!x) {
+				System.arraycopy(src, s, dst, d, rowBytes);
+				d += rowBytes;
+				continue;
+			}
+			for(s += rowBytes - Rasters.PIXEL_BYTES; d < (row + 1) * rowBytes; s -= Rasters.PIXEL_BYTES) {
+				dst[d++] = src[s];
+				dst[d++] = src[s + 1];
+				dst[d++] = src[s + 2];
+			}
+		}
+		return outputImage;
+	}
+
+	@Override
+	public Size getOutputSize(Size size) {
+		return new Size(size.width, size.height);
+	}
+
+	@Override
+	public long getScratchBytes(Size size, int pixelBytes) {
+		return 0;
+	}
+
+	@Override
+	public Transform getTransform(Size size) {
+		return new Transform(x ? -1 : 1, 0, x ? size.width - 1 : 0,
+				0, y ? -1 : 1, y ? size.height - 1 : 0,
+				0, 0, 1);
+	}
+
 	@Override
 	public String toJSON() {
 		JsonObject json = new JsonObject();
@@ -87,4 +136,9 @@ public class MirrorScanTask implements ScanTask {
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		return Objects.hash(x, y);
+	}
+
 }
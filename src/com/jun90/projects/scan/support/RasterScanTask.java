@@ -0,0 +1,36 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.awt.image.BufferedImage;
+
+public interface RasterScanTask extends ScanTask {
+
+	/**
+	 * Whether run(BufferedImage) supports the parameters of this task
+	 * @return Supported
+	 */
+	public boolean isRasterSupported();
+	
+	/**
+	 * Run task on the raster without OpenCV
+	 * @param image Source image (TYPE_3BYTE_BGR), it must not be changed
+	 * @return Image (TYPE_3BYTE_BGR), it may share the raster of the source
+	 */
+	public BufferedImage run(BufferedImage image);
+	
+}
@@ -0,0 +1,74 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
+
+/* Direct access to the bytes of TYPE_3BYTE_BGR images and their sub-images */
+final class Rasters {
+
+	static final int PIXEL_BYTES = 3;
+	
+	private Rasters() { }
+	
+	static BufferedImage create(int width, int height) {
+		return new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+	}
+	
+	static byte[] getData(BufferedImage image) {
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+	
+	/**
+	 * Get the index of the first byte of the pixel at (0, 0)
+	 */
+	static int getOffset(BufferedImage image) {
+		WritableRaster raster = image.getRaster();
+		ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+		int[] bandOffsets = sampleModel.getBandOffsets();
+		int bandOffset = bandOffsets[0];
+		for(int i = 1; i < bandOffsets.length; i++)
+			bandOffset = Math.min(bandOffset, bandOffsets[i]);
+		return ((DataBufferByte) raster.getDataBuffer()).getOffset() + bandOffset
+				- raster.getSampleModelTranslateY() * sampleModel.getScanlineStride()
+				- raster.getSampleModelTranslateX() * sampleModel.getPixelStride();
+	}
+	
+	/**
+	 * Get the bytes between two rows
+	 */
+	static int getStride(BufferedImage image) {
+		return ((ComponentSampleModel) image.getRaster().getSampleModel()).getScanlineStride();
+	}
+	
+	/**
+	 * Copy an image, or a sub-image, into an image of its own
+	 */
+	static BufferedImage copy(BufferedImage image) {
+		int width = image.getWidth(), height = image.getHeight(), rowBytes = width * PIXEL_BYTES;
+		BufferedImage output = create(width, height);
+		byte[] src = getData(image), dst = getData(output);
+		int srcOffset = getOffset(image), srcStride = getStride(image);
+		for(int row = 0; row < height; row++)
+			System.arraycopy(src, srcOffset + row * srcStride, dst, row * rowBytes, rowBytes);
+		return output;
+	}
+	
+}
@@ -16,6 +16,8 @@
  */
 package com.jun90.projects.scan.support;
 
+import java.util.Objects;
+
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -66,12 +68,17 @@ public class RelativePoint implements Point {
 	public boolean equals(Object object) {
 		if(object instanceof RelativePoint) {
 			RelativePoint target = (RelativePoint) object;
-			if(target.x == x && target.y == y)
+			if(Double.compare(target.x, x) == 0 && Double.compare(target.y, y) == 0)
 				return true;
 		}
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		return Objects.hash(x, y);
+	}
+
 	@Override
 	public String toJSON() {
 		JsonObject json = new JsonObject();
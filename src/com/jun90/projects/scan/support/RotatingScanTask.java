@@ -16,16 +16,22 @@
  */
 package com.jun90.projects.scan.support;
 
+import java.awt.image.BufferedImage;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
-public class RotatingScanTask implements ScanTask {
+public class RotatingScanTask implements RasterScanTask {
 
 	private final int angle;
 	
@@ -54,19 +60,124 @@ public class RotatingScanTask implements ScanTask {
 	@Override
 	public Mat run(Mat mat) {
 		if(angle % 360 == 0) return mat;
-		double radians = Math.toRadians(angle);
-		int diagonal = (int) (Math.sqrt(mat.cols() * mat.cols() + mat.rows() * mat.rows()));
-		Mat tempMat = new Mat(diagonal, diagonal, CvType.CV_8UC3), tempMat2 = new Mat(), outputMat = new Mat();
+		if(angle % 90 == 0) return runQuarter(mat);
+		int diagonal = getDiagonal(mat.size());
+		/* Black around the source, so the corners of the result do not depend on uninitialised memory */
+		Mat tempMat = Mat.zeros(diagonal, diagonal, CvType.CV_8UC3), tempMat2 = new Mat(), outputMat = new Mat();
 		int offsetX = (diagonal - mat.cols()) / 2;
 		int offsetY = (diagonal - mat.rows()) / 2;
 		mat.copyTo(tempMat.submat(offsetY, offsetY + mat.rows(), offsetX, offsetX + mat.cols()));
-		int width = (int) (Math.abs(mat.cols() * Math.cos(radians)) + Math.abs(mat.rows() * Math.sin(radians)));
-		int height = (int) (Math.abs(mat.cols() * Math.sin(radians)) + Math.abs(mat.rows() * Math.cos(radians)));
+		if(Thread.currentThread().isInterrupted()) {
+			tempMat.release();
+			throw new CancellationException();
+		}
+		Size size = getOutputSize(mat.size());
+		int width = (int) size.width, height = (int) size.height;
 		Mat m = Imgproc.getRotationMatrix2D(new Point((int) (tempMat.cols() * 0.5), (int) (tempMat.rows() * 0.5)), -angle, 1);
 		Imgproc.warpAffine(tempMat, tempMat2, m, tempMat.size());
+		tempMat.release();
+		if(Thread.currentThread().isInterrupted()) {
+			tempMat2.release();
+			throw new CancellationException();
+		}
 		new Mat(tempMat2, new Rect((diagonal - width) / 2, (diagonal - height) / 2, width, height)).copyTo(outputMat);
+		tempMat2.release();
+		return outputMat;
+	}
+
+	/* Quarter turns as an exact index remapping, the same pixels as run(BufferedImage) */
+	private Mat runQuarter(Mat mat) {
+		int quarter = getQuarter();
+		Mat outputMat = new Mat();
+		if(quarter == 2) {
+			Core.flip(mat, outputMat, -1);
+			return outputMat;
+		}
+		Mat tempMat = new Mat();
+		Core.transpose(mat, tempMat);
+		/* Clockwise mirrors the columns of the transpose, counterclockwise its rows */
+		Core.flip(tempMat, outputMat, quarter == 1 ? 1 : 0);
+		tempMat.release();
 		return outputMat;
 	}
+	
+	private int getQuarter() {
+		return (angle / 90 % 4 + 4) % 4;
+	}
+
+	@Override
+	public boolean isRasterSupported() {
+		return angle % 90 == 0;
+	}
+
+	@Override
+	public BufferedImage run(BufferedImage image) {
+		if(!isRasterSupported()) throw new IllegalArgumentException();
+		int quarter = getQuarter();
+		if(quarter == 0) return image;
+		if(quarter == 2) return new MirrorScanTask(true, true).run(image);
+		/* Quarter turns are an index remapping: the rows of the output are the columns of the source */
+		int width = image.getWidth(), height = image.getHeight();
+		BufferedImage outputImage = Rasters.create(height, width);
+		byte[] src = Rasters.getData(image), dst = Rasters.getData(outputImage);
+		int srcOffset = Rasters.getOffset(image), srcStride = Rasters.getStride(image);
+		int step = quarter == 1 ? -srcStride : srcStride;
+		for(int row = 0, d = 0; row < width; row++) {
+			/* Clockwise starts at the bottom of the column, counterclockwise at the top of the mirrored column */
+			int s = quarter == 1 ? srcOffset + (height - 1) * srcStride + row * Rasters.PIXEL_BYTES
+					: srcOffset + (width - 1 - row) * Rasters.PIXEL_BYTES;
+			for(int col = 0; col < height; col++, s += step) {
+				dst[d++] = src[s];
+				dst[d++] = src[s + 1];
+				dst[d++] = src[s + 2];
+			}
+		}
+		return outputImage;
+	}
+
+	private int getDiagonal(Size size) {
+		return (int) (Math.sqrt(size.width * size.width + size.height * size.height));
+	}
+
+	@Override
+	public Size getOutputSize(Size size) {
+		if(angle % 360 == 0) return new Size(size.width, size.height);
+		double radians = Math.toRadians(angle);
+		return new Size((int) (Math.abs(size.width * Math.cos(radians)) + Math.abs(size.height * Math.sin(radians))),
+				(int) (Math.abs(size.width * Math.sin(radians)) + Math.abs(size.height * Math.cos(radians))));
+	}
+
+	@Override
+	public long getScratchBytes(Size size, int pixelBytes) {
+		if(angle % 360 == 0) return 0;
+		/* The transpose of a quarter turn, none for a half turn */
+		if(angle % 90 == 0) return getQuarter() == 2 ? 0 : (long) size.width * (long) size.height * pixelBytes;
+		/* Two diagonal x diagonal canvases */
+		long diagonal = getDiagonal(size);
+		return 2 * diagonal * diagonal * pixelBytes;
+	}
+
+	@Override
+	public Transform getTransform(Size size) {
+		if(angle % 360 == 0) return Transform.IDENTITY;
+		double width = size.width - 1, height = size.height - 1;
+		/* Quarter turns are exact, like run */
+		int quarter = angle % 90 == 0 ? getQuarter() : 0;
+		if(quarter == 1) return new Transform(0, -1, height, 1, 0, 0, 0, 0, 1);
+		if(quarter == 2) return new Transform(-1, 0, width, 0, -1, height, 0, 0, 1);
+		if(quarter == 3) return new Transform(0, 1, 0, -1, 0, width, 0, 0, 1);
+		/* Same steps as run: centre on the canvas, rotate around its centre, crop */
+		int diagonal = getDiagonal(size);
+		Size outputSize = getOutputSize(size);
+		double radians = Math.toRadians(-angle), alpha = Math.cos(radians), beta = Math.sin(radians);
+		int center = (int) (diagonal * 0.5);
+		Transform rotation = new Transform(alpha, beta, (1 - alpha) * center - beta * center,
+				-beta, alpha, beta * center + (1 - alpha) * center,
+				0, 0, 1);
+		return Transform.translate(((int) (diagonal - size.width)) / 2, ((int) (diagonal - size.height)) / 2)
+				.then(rotation)
+				.then(Transform.translate(-(((int) (diagonal - outputSize.width)) / 2), -(((int) (diagonal - outputSize.height)) / 2)));
+	}
 
 	@Override
 	public String toJSON() {
@@ -80,10 +191,15 @@ public class RotatingScanTask implements ScanTask {
 	public boolean equals(Object object) {
 		if(object instanceof RotatingScanTask) {
 			RotatingScanTask target = (RotatingScanTask) object;
-			if(target.angle == target.angle)
+			if(target.angle == angle)
 				return true;
 		}
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		return Objects.hash(angle);
+	}
+
 }
@@ -0,0 +1,222 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+public class ScanGraph<T> {
+
+	private final ImageScanner<T> converter;
+	private final Map<String, List<ScanTask>> outputs = new LinkedHashMap<String, List<ScanTask>>();
+	
+	public ScanGraph(Class<T> type) throws RuntimeException {
+		converter = new ImageScanner<T>(type);
+	}
+	
+	/**
+	 * Add output, tasks equal to the start of another output are run only once
+	 * @param name Name of the output
+	 * @param tasks Tasks
+	 * @throws IllegalArgumentException
+	 */
+	public synchronized void addOutput(String name, List<ScanTask> tasks) throws IllegalArgumentException {
+		if(name == null || tasks == null || outputs.containsKey(name)) throw new IllegalArgumentException();
+		outputs.put(name, new ArrayList<ScanTask>(tasks));
+	}
+	
+	/**
+	 * Add output
+	 * @param name Name of the output
+	 * @param scanner Scanner whose tasks are added
+	 * @throws IllegalArgumentException
+	 */
+	public void addOutput(String name, ImageScanner<T> scanner) throws IllegalArgumentException {
+		addOutput(name, scanner.getTasks());
+	}
+	
+	/**
+	 * Add output
+	 * @param name Name of the output
+	 * @param s Recipe JSON
+	 * @throws IllegalArgumentException
+	 */
+	public void addOutput(String name, String s) throws IllegalArgumentException {
+		addOutput(name, ImageScanner.parseTasks(s));
+	}
+	
+	/**
+	 * Removes all of the outputs
+	 */
+	public synchronized void clear() {
+		outputs.clear();
+	}
+	
+	/**
+	 * Run tasks, branches run in parallel in the common pool
+	 * @param image Source image
+	 * @return Images by output name
+	 * @throws IllegalArgumentException
+	 * @throws RejectedExecutionException If the memory budget rejects the job
+	 */
+	public Map<String, T> run(T image) throws IllegalArgumentException, RejectedExecutionException {
+		return run(image, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Run tasks, branches run in parallel in an executor, which may be bounded
+	 * @param image Source image
+	 * @param executor Executor
+	 * @return Images by output name
+	 * @throws IllegalArgumentException
+	 * @throws RejectedExecutionException If the memory budget rejects the job
+	 */
+	public Map<String, T> run(T image, Executor executor) throws IllegalArgumentException, RejectedExecutionException {
+		if(image == null) throw new IllegalArgumentException();
+		Map<String, List<ScanTask>> outputs;
+		synchronized(this) {
+			outputs = new LinkedHashMap<String, List<ScanTask>>(this.outputs);
+		}
+		Node root = new Node(null);
+		for(Map.Entry<String, List<ScanTask>> output : outputs.entrySet())
+			root.add(output.getKey(), output.getValue());
+		MemoryBudget budget = ImageScanner.getMemoryBudget();
+		long bytes = 0;
+		if(budget != null) {
+			/* Branches may run at the same time, so count every output in full */
+			Size size = converter.getSize(image);
+			for(List<ScanTask> tasks : outputs.values())
+				bytes += ImageScanner.estimate(tasks, size);
+			try {
+				ImageScanner.acquire(budget, bytes);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		}
+		try {
+			Map<String, T> images = new ConcurrentHashMap<String, T>();
+			Mat mat = converter.toMat(image);
+			if(mat == null) return null;
+			try {
+				run(root, mat, images, executor);
+			} catch (CompletionException e) {
+				if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				throw e;
+			} finally {
+				mat.release();
+			}
+			Map<String, T> result = new LinkedHashMap<String, T>();
+			for(String name : outputs.keySet())
+				result.put(name, images.get(name));
+			return result;
+		} finally {
+			if(budget != null) budget.release(bytes);
+		}
+	}
+	
+	/*
+	 * Only the calling thread hands branches to the executor and waits for them, branches running 
+	 * in the executor run their own branches inline, so they never block on a bounded pool
+	 * executor is null inside the executor
+	 */
+	private void run(Node node, Mat mat, Map<String, T> images, Executor executor) {
+		for(String name : node.names)
+			images.put(name, converter.toImage(mat));
+		if(executor == null) {
+			for(Node child : node.children)
+				runChild(child, mat, images, null);
+			return;
+		}
+		List<CompletableFuture<Void>> branches = new ArrayList<CompletableFuture<Void>>();
+		for(int i = 0; i < node.children.size() - 1; i++) {
+			Node child = node.children.get(i);
+			branches.add(CompletableFuture.runAsync(() -> runChild(child, mat, images, null), executor));
+		}
+		/* The last branch runs in this thread, the Mat must outlive every branch even if one fails */
+		RuntimeException failure = null;
+		try {
+			if(!node.children.isEmpty())
+				runChild(node.children.get(node.children.size() - 1), mat, images, executor);
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+		for(CompletableFuture<Void> branch : branches) {
+			try {
+				branch.join();
+			} catch (RuntimeException e) {
+				if(failure == null) failure = e;
+			}
+		}
+		if(failure != null) throw failure;
+	}
+	
+	private void runChild(Node child, Mat mat, Map<String, T> images, Executor executor) {
+		Mat outputMat = child.task.run(mat);
+		if(outputMat == null) throw new RuntimeException();
+		try {
+			run(child, outputMat, images, executor);
+		} finally {
+			/* Shared intermediate results are freed once every branch below is done */
+			if(outputMat != mat) outputMat.release();
+		}
+	}
+	
+	/* Prefix tree of tasks */
+	private static class Node {
+		
+		private final ScanTask task;
+		private final List<Node> children = new ArrayList<Node>();
+		private final List<String> names = new ArrayList<String>();
+		
+		Node(ScanTask task) {
+			this.task = task;
+		}
+		
+		void add(String name, List<ScanTask> tasks) {
+			Node node = this;
+			for(ScanTask task : tasks) {
+				Node next = null;
+				for(Node child : node.children) {
+					if(child.task.equals(task)) {
+						next = child;
+						break;
+					}
+				}
+				if(next == null) {
+					next = new Node(task);
+					node.children.add(next);
+				}
+				node = next;
+			}
+			node.names.add(name);
+		}
+		
+	}
+	
+}
@@ -17,6 +17,7 @@
 package com.jun90.projects.scan.support;
 
 import org.opencv.core.Mat;
+import org.opencv.core.Size;
 
 public interface ScanTask {
 
@@ -27,6 +28,34 @@ public interface ScanTask {
 	 */
 	public Mat run(Mat mat);
 	
+	/**
+	 * Get output size
+	 * @param size Source size
+	 * @return Size of the Mat returned by run, the source size by default
+	 */
+	public default Size getOutputSize(Size size) {
+		return new Size(size.width, size.height);
+	}
+	
+	/**
+	 * Get the temporary memory used besides the source and the output
+	 * @param size Source size
+	 * @param pixelBytes Bytes per pixel
+	 * @return Bytes, none by default
+	 */
+	public default long getScratchBytes(Size size, int pixelBytes) {
+		return 0;
+	}
+	
+	/**
+	 * Get the mapping from source pixel coordinates to output pixel coordinates
+	 * @param size Source size
+	 * @return Transform, the identity if only pixel values change, null if output pixels depend on their neighbours as by default
+	 */
+	public default Transform getTransform(Size size) {
+		return null;
+	}
+	
 	public String toJSON();
 	
 }
@@ -0,0 +1,139 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+public class ScannerCache {
+
+	private static final int DEFAULT_CAPACITY = 64;
+	private static final ScannerCache instance = new ScannerCache(DEFAULT_CAPACITY);
+	
+	/* Recipe JSON as given -> scanner, skips parsing for repeated strings */
+	private final Map<Key, ImageScanner<?>> recipes;
+	/* Parsed task list -> scanner, shares one scanner between equivalent recipes */
+	private final Map<Key, ImageScanner<?>> scanners;
+	
+	/**
+	 * Construct a cache
+	 * @param capacity Most scanners kept, the least recently used is evicted first
+	 * @throws IllegalArgumentException
+	 */
+	public ScannerCache(int capacity) throws IllegalArgumentException {
+		if(capacity <= 0) throw new IllegalArgumentException();
+		recipes = new LruMap(capacity);
+		scanners = new LruMap(capacity);
+	}
+	
+	/**
+	 * Get the process-wide cache
+	 * @return Cache
+	 */
+	public static ScannerCache getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Get the scanner of a recipe, building it on first use.
+	 * The scanner is immutable and can be run from several threads at once.
+	 * @param type Image class
+	 * @param s Recipe JSON
+	 * @return Scanner
+	 * @throws IllegalArgumentException
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> ImageScanner<T> get(Class<T> type, String s) throws IllegalArgumentException {
+		if(type == null || s == null) throw new IllegalArgumentException();
+		Key recipeKey = new Key(type, s);
+		synchronized(this) {
+			ImageScanner<?> scanner = recipes.get(recipeKey);
+			if(scanner != null) return (ImageScanner<T>) scanner;
+		}
+		/* Parse outside the lock, the task list is the canonical form of the recipe */
+		List<ScanTask> tasks = ImageScanner.parseTasks(s);
+		Key tasksKey = new Key(type, tasks);
+		synchronized(this) {
+			ImageScanner<?> scanner = scanners.get(tasksKey);
+			if(scanner == null) {
+				scanner = new ImageScanner<T>(type, tasks);
+				scanners.put(tasksKey, scanner);
+			}
+			recipes.put(recipeKey, scanner);
+			return (ImageScanner<T>) scanner;
+		}
+	}
+	
+	public synchronized int size() {
+		return scanners.size();
+	}
+	
+	/**
+	 * Removes all of the scanners
+	 */
+	public synchronized void clear() {
+		recipes.clear();
+		scanners.clear();
+	}
+	
+	private static class Key {
+		
+		private final Class<?> type;
+		private final Object recipe;
+		
+		Key(Class<?> type, Object recipe) {
+			this.type = type;
+			this.recipe = recipe;
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			if(object instanceof Key) {
+				Key target = (Key) object;
+				if(target.type == type && target.recipe.equals(recipe))
+					return true;
+			}
+			return false;
+		}
+		
+		@Override
+		public int hashCode() {
+			return Objects.hash(type, recipe);
+		}
+		
+	}
+	
+	@SuppressWarnings("serial")
+	private static class LruMap extends LinkedHashMap<Key, ImageScanner<?>> {
+		
+		private final int capacity;
+		
+		LruMap(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, ImageScanner<?>> eldest) {
+			return size() > capacity;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,144 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.util.Objects;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class SharpenScanTask implements ScanTask {
+
+	/* Passes of the box filter approximating the Gaussian */
+	private static final int PASSES = 3;
+	/* Largest radius accepted, recipes come from clients and box widths grow with it */
+	public static final double MAX_SIGMA = 100;
+	
+	private final double sigma, amount;
+	
+	/**
+	 * Construct an unsharp mask task, the cost per pixel does not depend on sigma
+	 * @param sigma Radius of the Gaussian blur in pixels (Up to MAX_SIGMA)
+	 * @param amount Sharpen when above 0, denoise when below 0 (-1.0 for the blurred image)
+	 * @throws IllegalArgumentException
+	 */
+	public SharpenScanTask(double sigma, double amount) throws IllegalArgumentException {
+		check(sigma, amount);
+		this.sigma = sigma;
+		this.amount = amount;
+	}
+	
+	public SharpenScanTask(String s) throws IllegalArgumentException {
+		JsonObject json = new JsonParser().parse(s).getAsJsonObject();
+		if(!json.get("type").getAsString().equals(getClass().getSimpleName()))
+			throw new IllegalArgumentException();
+		sigma = json.get("sigma").getAsDouble();
+		amount = json.get("amount").getAsDouble();
+		check(sigma, amount);
+	}
+	
+	private static void check(double sigma, double amount) throws IllegalArgumentException {
+		if(!(sigma > 0 && sigma <= MAX_SIGMA && amount >= -1) || Double.isInfinite(amount))
+			throw new IllegalArgumentException();
+	}
+	
+	public double getSigma() {
+		return sigma;
+	}
+	
+	public double getAmount() {
+		return amount;
+	}
+	
+	/* Odd box widths whose repeated application has the variance of the Gaussian */
+	private int[] getBoxSizes() {
+		double ideal = Math.sqrt(12 * sigma * sigma / PASSES + 1);
+		int lower = (int) Math.floor(ideal);
+		if(lower % 2 == 0) lower--;
+		int upper = lower + 2;
+		long m = Math.round((12 * sigma * sigma - PASSES * lower * lower - 4 * PASSES * lower - 3 * PASSES) / (-4.0 * lower - 4));
+		int[] sizes = new int[PASSES];
+		for(int i = 0; i < PASSES; i++)
+			sizes[i] = i < m ? lower : upper;
+		return sizes;
+	}
+	
+	@Override
+	public Mat run(Mat mat) {
+		if(amount == 0) return mat;
+		/* Blur in place in a pooled buffer, only the output is allocated */
+		Mat blurred = MatPool.getInstance().acquire(mat.rows(), mat.cols(), mat.type());
+		try {
+			int[] sizes = getBoxSizes();
+			Imgproc.blur(mat, blurred, new Size(sizes[0], sizes[0]));
+			for(int i = 1; i < sizes.length; i++)
+				Imgproc.blur(blurred, blurred, new Size(sizes[i], sizes[i]));
+			Mat outputMat = new Mat();
+			Core.addWeighted(mat, 1 + amount, blurred, -amount, 0, outputMat);
+			return outputMat;
+		} finally {
+			MatPool.getInstance().release(blurred);
+		}
+	}
+	
+	@Override
+	public Size getOutputSize(Size size) {
+		return new Size(size.width, size.height);
+	}
+	
+	@Override
+	public long getScratchBytes(Size size, int pixelBytes) {
+		if(amount == 0) return 0;
+		return (long) size.width * (long) size.height * pixelBytes;
+	}
+	
+	@Override
+	public Transform getTransform(Size size) {
+		/* Output pixels depend on their neighbours */
+		return null;
+	}
+	
+	@Override
+	public String toJSON() {
+		JsonObject json = new JsonObject();
+		json.addProperty("type", getClass().getSimpleName());
+		json.addProperty("sigma", sigma);
+		json.addProperty("amount", amount);
+		return json.toString();
+	}
+	
+	@Override
+	public boolean equals(Object object) {
+		if(object instanceof SharpenScanTask) {
+			SharpenScanTask target = (SharpenScanTask) object;
+			if(Double.compare(target.sigma, sigma) == 0 && Double.compare(target.amount, amount) == 0)
+				return true;
+		}
+		return false;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(sigma, amount);
+	}
+	
+}
@@ -0,0 +1,245 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+/**
+ * Runs tasks on raw images larger than memory, one output tile at a time.
+ * Geometric tasks are composed into one transform, every output tile is rendered
+ * from the source tiles it maps back onto and clipped like running the tasks one by one would.
+ * Tasks that only change pixel values run on each tile, see WarpPlan for how closely that matches.
+ */
+public class TiledImageScanner {
+
+	private static final int PIXEL_BYTES = 3;
+	
+	private final List<ScanTask> tasks;
+	private final int tileSize, cacheTiles;
+	
+	/**
+	 * Construct a scanner with 1024 pixel tiles and a cache of 64 tiles
+	 * @param s Recipe JSON
+	 * @throws IllegalArgumentException
+	 */
+	public TiledImageScanner(String s) throws IllegalArgumentException {
+		this(ImageScanner.parseTasks(s), 1024, 64);
+	}
+	
+	/**
+	 * Construct a scanner
+	 * @param tasks Tasks, none of them may depend on neighbouring pixels
+	 * @param tileSize Width and height of tiles
+	 * @param cacheTiles Most source tiles kept in memory
+	 * @throws IllegalArgumentException
+	 */
+	public TiledImageScanner(List<ScanTask> tasks, int tileSize, int cacheTiles) throws IllegalArgumentException {
+		if(tileSize <= 0 || cacheTiles <= 0) throw new IllegalArgumentException();
+		for(ScanTask task : tasks) {
+			if(task.getTransform(new Size(tileSize, tileSize)) == null) throw new IllegalArgumentException();
+		}
+		this.tasks = Collections.unmodifiableList(new ArrayList<ScanTask>(tasks));
+		this.tileSize = tileSize;
+		this.cacheTiles = cacheTiles;
+	}
+	
+	/**
+	 * Run tasks
+	 * @param source Raw BGR image, rows from top to bottom without padding
+	 * @param width Width of the source
+	 * @param height Height of the source
+	 * @param destination Raw BGR image written in the same layout
+	 * @return Size of the output
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 */
+	public Size run(File source, int width, int height, File destination) throws IOException, IllegalArgumentException {
+		if(width <= 0 || height <= 0) throw new IllegalArgumentException();
+		WarpPlan plan = WarpPlan.create(tasks, new Size(width, height));
+		if(plan == null) throw new IllegalArgumentException();
+		Size size = plan.getOutputSize();
+		try(RandomAccessFile input = new RandomAccessFile(source, "r");
+				RandomAccessFile output = new RandomAccessFile(destination, "rw")) {
+			if(input.length() != (long) width * height * PIXEL_BYTES) throw new IllegalArgumentException();
+			output.setLength((long) size.width * (long) size.height * PIXEL_BYTES);
+			Renderer renderer = new Renderer(new MappedImage(input.getChannel(), FileChannel.MapMode.READ_ONLY, width, height),
+					new MappedImage(output.getChannel(), FileChannel.MapMode.READ_WRITE, (int) size.width, (int) size.height),
+					plan);
+			try {
+				for(int y = 0; y < (int) size.height; y += tileSize) {
+					for(int x = 0; x < (int) size.width; x += tileSize)
+						renderer.render(x, y, Math.min(tileSize, (int) size.width - x), Math.min(tileSize, (int) size.height - y));
+				}
+				renderer.destination.force();
+			} finally {
+				renderer.clear();
+			}
+		}
+		return size;
+	}
+	
+	private class Renderer {
+		
+		private final MappedImage source, destination;
+		private final WarpPlan plan;
+		private final Transform inverse;
+		private final Map<Long, Mat> cache = new LinkedHashMap<Long, Mat>(16, 0.75f, true);
+		
+		Renderer(MappedImage source, MappedImage destination, WarpPlan plan) {
+			this.source = source;
+			this.destination = destination;
+			this.plan = plan;
+			this.inverse = plan.getTransform().invert();
+		}
+		
+		void render(int x, int y, int width, int height) throws IOException {
+			Rect region = inverse.getBounds(x - 0.5, y - 0.5, width, height, new Size(source.width, source.height));
+			/* Split tiles that map onto more source than the cache holds, as happens when zooming out */
+			if((long) region.width * region.height > (long) cacheTiles * tileSize * tileSize / 2 && (width > 1 || height > 1)) {
+				if(width >= height) {
+					render(x, y, width / 2, height);
+					render(x + width / 2, y, width - width / 2, height);
+				} else {
+					render(x, y, width, height / 2);
+					render(x, y + height / 2, width, height - height / 2);
+				}
+				return;
+			}
+			Mat mat = null;
+			if(region.width > 0 && region.height > 0) mat = getRegion(region.x, region.y, region.width, region.height);
+			Mat tile;
+			try {
+				tile = plan.render(mat, region, Transform.translate(-x, -y), new Size(width, height));
+			} finally {
+				if(mat != null) mat.release();
+			}
+			destination.write(tile, x, y);
+			tile.release();
+		}
+		
+		private Mat getRegion(int x, int y, int width, int height) throws IOException {
+			Mat region = new Mat(height, width, CvType.CV_8UC3);
+			for(int tileY = y / tileSize; tileY * tileSize < y + height; tileY++) {
+				for(int tileX = x / tileSize; tileX * tileSize < x + width; tileX++) {
+					Mat tile = getTile(tileX, tileY);
+					int left = Math.max(x, tileX * tileSize), top = Math.max(y, tileY * tileSize);
+					int right = Math.min(x + width, tileX * tileSize + tile.cols()), bottom = Math.min(y + height, tileY * tileSize + tile.rows());
+					tile.submat(top - tileY * tileSize, bottom - tileY * tileSize, left - tileX * tileSize, right - tileX * tileSize)
+							.copyTo(region.submat(new Rect(left - x, top - y, right - left, bottom - top)));
+				}
+			}
+			return region;
+		}
+		
+		private Mat getTile(int tileX, int tileY) throws IOException {
+			long key = ((long) tileY << 32) | tileX;
+			Mat tile = cache.get(key);
+			if(tile != null) return tile;
+			tile = source.read(tileX * tileSize, tileY * tileSize,
+					Math.min(tileSize, source.width - tileX * tileSize), Math.min(tileSize, source.height - tileY * tileSize));
+			cache.put(key, tile);
+			if(cache.size() > cacheTiles) {
+				Map.Entry<Long, Mat> eldest = cache.entrySet().iterator().next();
+				eldest.getValue().release();
+				cache.remove(eldest.getKey());
+			}
+			return tile;
+		}
+		
+		void clear() {
+			for(Mat tile : cache.values())
+				tile.release();
+			cache.clear();
+		}
+		
+	}
+	
+	/* Raw image mapped in bands of rows, a mapping can not exceed 2 GB */
+	private static class MappedImage {
+		
+		private final FileChannel channel;
+		private final FileChannel.MapMode mode;
+		private final int width, height, rowBytes, bandRows;
+		private final MappedByteBuffer[] bands;
+		
+		MappedImage(FileChannel channel, FileChannel.MapMode mode, int width, int height) throws IllegalArgumentException {
+			if(width <= 0 || height <= 0 || (long) width * PIXEL_BYTES > Integer.MAX_VALUE) throw new IllegalArgumentException();
+			this.channel = channel;
+			this.mode = mode;
+			this.width = width;
+			this.height = height;
+			rowBytes = width * PIXEL_BYTES;
+			bandRows = Integer.MAX_VALUE / rowBytes;
+			bands = new MappedByteBuffer[(height + bandRows - 1) / bandRows];
+		}
+		
+		private MappedByteBuffer getBand(int row) throws IOException {
+			int index = row / bandRows;
+			if(bands[index] == null) {
+				int rows = Math.min(bandRows, height - index * bandRows);
+				bands[index] = channel.map(mode, (long) index * bandRows * rowBytes, (long) rows * rowBytes);
+			}
+			return bands[index];
+		}
+		
+		Mat read(int x, int y, int width, int height) throws IOException {
+			Mat mat = new Mat(height, width, CvType.CV_8UC3);
+			byte[] buffer = new byte[width * PIXEL_BYTES];
+			for(int row = 0; row < height; row++) {
+				MappedByteBuffer band = getBand(y + row);
+				/* Buffer.position keeps the class file working on Java 8 */
+				((Buffer) band).position(((y + row) % bandRows) * rowBytes + x * PIXEL_BYTES);
+				band.get(buffer);
+				mat.put(row, 0, buffer);
+			}
+			return mat;
+		}
+		
+		void write(Mat mat, int x, int y) throws IOException {
+			byte[] buffer = new byte[mat.cols() * PIXEL_BYTES];
+			for(int row = 0; row < mat.rows(); row++) {
+				mat.get(row, 0, buffer);
+				MappedByteBuffer band = getBand(y + row);
+				((Buffer) band).position(((y + row) % bandRows) * rowBytes + x * PIXEL_BYTES);
+				band.put(buffer);
+			}
+		}
+		
+		void force() {
+			for(MappedByteBuffer band : bands) {
+				if(band != null) band.force();
+			}
+		}
+		
+	}
+	
+}
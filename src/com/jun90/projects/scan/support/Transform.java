@@ -0,0 +1,166 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.util.Arrays;
+
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+/**
+ * Projective transform of pixel coordinates, pixel centres are at integer coordinates
+ */
+public final class Transform {
+
+	public static final Transform IDENTITY = new Transform(1, 0, 0, 0, 1, 0, 0, 0, 1);
+	
+	/* Row-major 3x3 matrix */
+	private final double[] m;
+	
+	/**
+	 * Construct a transform
+	 * @param m Row-major 3x3 matrix
+	 * @throws IllegalArgumentException
+	 */
+	public Transform(double... m) throws IllegalArgumentException {
+		if(m == null || m.length != 9) throw new IllegalArgumentException();
+		this.m = Arrays.copyOf(m, 9);
+	}
+	
+	public static Transform translate(double x, double y) {
+		return new Transform(1, 0, x, 0, 1, y, 0, 0, 1);
+	}
+	
+	public static Transform scale(double x, double y) {
+		return new Transform(x, 0, 0, 0, y, 0, 0, 0, 1);
+	}
+	
+	/**
+	 * Construct the transform mapping four points onto four others
+	 * @param src x0, y0, x1, y1, x2, y2, x3, y3
+	 * @param dst x0, y0, x1, y1, x2, y2, x3, y3
+	 * @return Transform
+	 * @throws IllegalArgumentException If three of the points are on a line
+	 */
+	public static Transform perspective(double[] src, double[] dst) throws IllegalArgumentException {
+		if(src.length != 8 || dst.length != 8) throw new IllegalArgumentException();
+		/* u = (ax + by + c) / (gx + hy + 1), v = (dx + ey + f) / (gx + hy + 1) */
+		double[][] a = new double[8][9];
+		for(int i = 0; i < 4; i++) {
+			double x = src[i * 2], y = src[i * 2 + 1], u = dst[i * 2], v = dst[i * 2 + 1];
+			a[i * 2] = new double[] { x, y, 1, 0, 0, 0, -x * u, -y * u, u };
+			a[i * 2 + 1] = new double[] { 0, 0, 0, x, y, 1, -x * v, -y * v, v };
+		}
+		for(int col = 0; col < 8; col++) {
+			int pivot = col;
+			for(int row = col + 1; row < 8; row++) {
+				if(Math.abs(a[row][col]) > Math.abs(a[pivot][col])) pivot = row;
+			}
+			if(Math.abs(a[pivot][col]) < 1e-12) throw new IllegalArgumentException();
+			double[] t = a[col];
+			a[col] = a[pivot];
+			a[pivot] = t;
+			for(int row = 0; row < 8; row++) {
+				if(row == col) continue;
+				double factor = a[row][col] / a[col][col];
+				for(int k = col; k < 9; k++)
+					a[row][k] -= factor * a[col][k];
+			}
+		}
+		double[] p = new double[9];
+		for(int i = 0; i < 8; i++)
+			p[i] = a[i][8] / a[i][i];
+		p[8] = 1;
+		return new Transform(p);
+	}
+	
+	/**
+	 * Get the transform applying this one and then another
+	 * @param next Transform applied afterwards
+	 * @return Transform
+	 */
+	public Transform then(Transform next) {
+		double[] r = new double[9];
+		for(int row = 0; row < 3; row++) {
+			for(int col = 0; col < 3; col++) {
+				r[row * 3 + col] = next.m[row * 3] * m[col] + next.m[row * 3 + 1] * m[3 + col] + next.m[row * 3 + 2] * m[6 + col];
+			}
+		}
+		return new Transform(r);
+	}
+	
+	/**
+	 * Get the inverse transform
+	 * @return Transform
+	 * @throws IllegalStateException If the transform can not be inverted
+	 */
+	public Transform invert() throws IllegalStateException {
+		double a = m[4] * m[8] - m[5] * m[7];
+		double b = m[5] * m[6] - m[3] * m[8];
+		double c = m[3] * m[7] - m[4] * m[6];
+		double determinant = m[0] * a + m[1] * b + m[2] * c;
+		if(Math.abs(determinant) < 1e-12) throw new IllegalStateException();
+		return new Transform(a / determinant, (m[2] * m[7] - m[1] * m[8]) / determinant, (m[1] * m[5] - m[2] * m[4]) / determinant,
+				b / determinant, (m[0] * m[8] - m[2] * m[6]) / determinant, (m[2] * m[3] - m[0] * m[5]) / determinant,
+				c / determinant, (m[1] * m[6] - m[0] * m[7]) / determinant, (m[0] * m[4] - m[1] * m[3]) / determinant);
+	}
+	
+	/**
+	 * Transform a point
+	 * @return x, y
+	 */
+	public double[] apply(double x, double y) {
+		double w = m[6] * x + m[7] * y + m[8];
+		return new double[] { (m[0] * x + m[1] * y + m[2]) / w, (m[3] * x + m[4] * y + m[5]) / w };
+	}
+	
+	/**
+	 * Get the pixels a region maps onto, with one more pixel on each side for interpolation
+	 * @param x Left edge of the region
+	 * @param y Top edge of the region
+	 * @param width Width of the region
+	 * @param height Height of the region
+	 * @param size Size the result is clipped to
+	 * @return Pixels, empty if the region maps outside
+	 */
+	Rect getBounds(double x, double y, double width, double height, Size size) {
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for(int i = 0; i < 4; i++) {
+			double[] point = apply(i % 2 == 0 ? x : x + width, i < 2 ? y : y + height);
+			minX = Math.min(minX, point[0]);
+			minY = Math.min(minY, point[1]);
+			maxX = Math.max(maxX, point[0]);
+			maxY = Math.max(maxY, point[1]);
+		}
+		int left = Math.max(0, (int) Math.floor(minX) - 1), top = Math.max(0, (int) Math.floor(minY) - 1);
+		int right = Math.min((int) size.width, (int) Math.ceil(maxX) + 2), bottom = Math.min((int) size.height, (int) Math.ceil(maxY) + 2);
+		return new Rect(left, top, Math.max(0, right - left), Math.max(0, bottom - top));
+	}
+	
+	/**
+	 * Get the matrix
+	 * @return Row-major 3x3 matrix
+	 */
+	public double[] getMatrix() {
+		return Arrays.copyOf(m, 9);
+	}
+	
+	public boolean isIdentity() {
+		return Arrays.equals(m, IDENTITY.m);
+	}
+	
+}
@@ -0,0 +1,278 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import android.graphics.Bitmap;
+
+public class WarmUp<T> {
+
+	private final Class<T> type;
+	private final int width, height, rounds;
+	private int poolBuffers = 0;
+	private final List<String> recipes = new ArrayList<String>();
+	private final List<Runnable> listeners = new ArrayList<Runnable>();
+	private final List<String> skippedRecipes = new ArrayList<String>();
+	private volatile boolean done = false, nativeLoaded = false;
+	private volatile Throwable failure = null;
+	
+	/**
+	 * Construct a warm-up running every task three times
+	 * @param type Image class
+	 * @param width Width of the synthetic page
+	 * @param height Height of the synthetic page
+	 * @throws IllegalArgumentException
+	 */
+	public WarmUp(Class<T> type, int width, int height) throws IllegalArgumentException {
+		this(type, width, height, 3);
+	}
+	
+	/**
+	 * Construct a warm-up
+	 * @param type Image class
+	 * @param width Width of the synthetic page
+	 * @param height Height of the synthetic page
+	 * @param rounds Times every task and recipe is run
+	 * @throws IllegalArgumentException
+	 */
+	public WarmUp(Class<T> type, int width, int height, int rounds) throws IllegalArgumentException {
+		if(type == null || width <= 0 || height <= 0 || rounds <= 0) throw new IllegalArgumentException();
+		this.type = type;
+		this.width = width;
+		this.height = height;
+		this.rounds = rounds;
+	}
+	
+	/**
+	 * Add a recipe to compile into ScannerCache and run
+	 * @param s Recipe JSON
+	 */
+	public synchronized void addRecipe(String s) {
+		recipes.add(s);
+	}
+	
+	/**
+	 * Add a callback run once the warm-up is done, whether it succeeded or not, at once if it is already done
+	 * @param listener Callback, which may check isReady and getFailure
+	 */
+	public void addListener(Runnable listener) {
+		synchronized(this) {
+			if(!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		listener.run();
+	}
+	
+	/**
+	 * Set how many page sized buffers are put into MatPool, as many as fit in it and in the memory budget
+	 * @param count Buffers
+	 */
+	public synchronized void setPoolBuffers(int count) {
+		if(count < 0) throw new IllegalArgumentException();
+		poolBuffers = count;
+	}
+	
+	public boolean isDone() {
+		return done;
+	}
+	
+	/**
+	 * Whether the warm-up has finished without failing or skipping a recipe
+	 * @return Ready
+	 */
+	public synchronized boolean isReady() {
+		return done && failure == null && skippedRecipes.isEmpty();
+	}
+	
+	/**
+	 * Get the recipes that could not be run, because they need OpenCV natives that are missing
+	 * @return Recipes
+	 */
+	public synchronized List<String> getSkippedRecipes() {
+		return new ArrayList<String>(skippedRecipes);
+	}
+	
+	/**
+	 * Get what made the warm-up fail
+	 * @return Exception or error, null if it has not failed
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+	
+	public boolean isNativeLoaded() {
+		return nativeLoaded;
+	}
+	
+	/**
+	 * Run the warm-up in the calling thread, listeners are notified even if it fails
+	 */
+	public void run() {
+		try {
+			warmUp();
+		} catch (RuntimeException | Error e) {
+			failure = e;
+			throw e;
+		} finally {
+			finish();
+		}
+	}
+	
+	/**
+	 * Run the warm-up in an executor
+	 * @param executor Executor
+	 * @return Future completed once the warm-up is done, exceptionally if it fails
+	 */
+	public CompletableFuture<Void> runAsync(Executor executor) {
+		return CompletableFuture.runAsync(this::run, executor);
+	}
+	
+	private void warmUp() {
+		synchronized(this) {
+			skippedRecipes.clear();
+		}
+		nativeLoaded = loadNative();
+		if(nativeLoaded) {
+			int count;
+			synchronized(this) {
+				count = poolBuffers;
+			}
+			MatPool.getInstance().prefill(height, width, CvType.CV_8UC3, count);
+		}
+		for(int i = 0; i < rounds; i++) {
+			for(ScanTask task : getSampleTasks()) {
+				if(nativeLoaded) runMat(task);
+				if(task instanceof RasterScanTask && ((RasterScanTask) task).isRasterSupported())
+					runRaster((RasterScanTask) task);
+			}
+		}
+		List<String> recipes;
+		synchronized(this) {
+			recipes = new ArrayList<String>(this.recipes);
+		}
+		for(String recipe : recipes) {
+			ImageScanner<T> scanner = ScannerCache.getInstance().get(type, recipe);
+			T image = createImage();
+			if(image == null || (!nativeLoaded && !ImageScanner.isRasterSupported(scanner.getTasks()))) {
+				synchronized(this) {
+					skippedRecipes.add(recipe);
+				}
+				continue;
+			}
+			for(int i = 0; i < rounds; i++) {
+				if(i > 0) image = createImage();
+				scanner.run(image);
+			}
+		}
+	}
+	
+	private void finish() {
+		List<Runnable> listeners;
+		synchronized(this) {
+			done = true;
+			listeners = new ArrayList<Runnable>(this.listeners);
+			this.listeners.clear();
+		}
+		for(Runnable listener : listeners)
+			listener.run();
+	}
+	
+	/* The application may have loaded the natives already, from a path or an unpacking loader */
+	private static boolean loadNative() {
+		if(isNativeUsable()) return true;
+		try {
+			System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		} catch (UnsatisfiedLinkError e) {
+			return false;
+		}
+		return isNativeUsable();
+	}
+	
+	private static boolean isNativeUsable() {
+		try {
+			new Mat().release();
+			return true;
+		} catch (UnsatisfiedLinkError e) {
+			return false;
+		}
+	}
+	
+	/* One of every task type, with parameters that do real work */
+	private static List<ScanTask> getSampleTasks() {
+		List<ScanTask> tasks = new ArrayList<ScanTask>();
+		tasks.add(new AdjustmentScanTask(0.2, 0.1));
+		tasks.add(new AutoLevelsScanTask(0.01, 0.99, 8));
+		tasks.add(new CorrectionScanTask(new RelativePoint(0.1, 0.05), new RelativePoint(0.9, 0.1), 
+				new RelativePoint(0.95, 0.9), new RelativePoint(0.05, 0.95)));
+		tasks.add(new CroppingScanTask(0.1, 0.1, 0.8, 0.8));
+		tasks.add(new MirrorScanTask(true, true));
+		tasks.add(new RotatingScanTask(90));
+		tasks.add(new RotatingScanTask(30));
+		tasks.add(new SharpenScanTask(1.5, 0.5));
+		tasks.add(new ZoomScanTask(0.5, 0.5));
+		return tasks;
+	}
+	
+	private void runMat(ScanTask task) {
+		Mat mat = new Mat(height, width, CvType.CV_8UC3, new Scalar(64, 128, 192));
+		Mat outputMat = task.run(mat);
+		if(outputMat != mat) outputMat.release();
+		mat.release();
+	}
+	
+	private void runRaster(RasterScanTask task) {
+		try {
+			if(type == Class.forName("java.awt.image.BufferedImage")) {
+				task.run((BufferedImage) createImage());
+			}
+		} catch (ClassNotFoundException e) { }
+	}
+	
+	@SuppressWarnings("unchecked")
+	private T createImage() {
+		try {
+			if(type == Class.forName("android.graphics.Bitmap")) {
+				Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+				bitmap.eraseColor(0xffc08040);
+				return (T) bitmap;
+			}
+		} catch (ClassNotFoundException e) { }
+		try {
+			if(type == Class.forName("java.awt.image.BufferedImage")) {
+				BufferedImage image = Rasters.create(width, height);
+				byte[] data = Rasters.getData(image);
+				for(int i = 0; i < data.length; i++)
+					data[i] = (byte) i;
+				return (T) image;
+			}
+		} catch (ClassNotFoundException e) { }
+		return null;
+	}
+	
+}
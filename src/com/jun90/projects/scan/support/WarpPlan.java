@@ -0,0 +1,199 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Geometric tasks composed into one warp.
+ * Running the tasks one by one, every geometric task fills what lies outside its source with black,
+ * as when a rotation follows a crop, so after the warp each of them clips the result to its source.
+ * Tasks that only change pixel values and come before the first geometric task run on the source,
+ * later ones run on the warped result, which matches running them one by one except where
+ * interpolation and saturation do not commute.
+ */
+final class WarpPlan {
+
+	/* Fixed point bits of the clip polygons */
+	private static final int SHIFT = 4;
+	
+	private final Transform transform;
+	private final Size outputSize;
+	private final List<ScanTask> sourceTasks = new ArrayList<ScanTask>();
+	/* Clips and tasks after the first geometric task, in task order */
+	private final List<Step> steps = new ArrayList<Step>();
+	
+	private WarpPlan(Transform transform, Size outputSize) {
+		this.transform = transform;
+		this.outputSize = outputSize;
+	}
+	
+	/**
+	 * Plan tasks
+	 * @param tasks Tasks
+	 * @param size Source size
+	 * @return Plan, null if a task depends on neighbouring pixels
+	 */
+	static WarpPlan create(List<ScanTask> tasks, Size size) {
+		List<Transform> transforms = new ArrayList<Transform>();
+		List<Size> sizes = new ArrayList<Size>();
+		for(ScanTask task : tasks) {
+			Transform next = task.getTransform(size);
+			if(next == null) return null;
+			transforms.add(next);
+			sizes.add(size);
+			size = task.getOutputSize(size);
+		}
+		/* Transforms from the source of every task to the result */
+		Transform[] toOutput = new Transform[tasks.size()];
+		Transform transform = Transform.IDENTITY;
+		for(int i = tasks.size() - 1; i >= 0; i--) {
+			if(!transforms.get(i).isIdentity()) transform = transforms.get(i).then(transform);
+			toOutput[i] = transform;
+		}
+		WarpPlan plan = new WarpPlan(transform, size);
+		boolean warped = false;
+		for(int i = 0; i < tasks.size(); i++) {
+			if(!transforms.get(i).isIdentity()) {
+				warped = true;
+				plan.steps.add(new Step(null, sizes.get(i), toOutput[i]));
+			} else if(warped) {
+				plan.steps.add(new Step(tasks.get(i), null, null));
+			} else {
+				plan.sourceTasks.add(tasks.get(i));
+			}
+		}
+		return plan;
+	}
+	
+	/**
+	 * Get the transform from the source to the result
+	 * @return Transform
+	 */
+	Transform getTransform() {
+		return transform;
+	}
+	
+	Size getOutputSize() {
+		return outputSize;
+	}
+	
+	/**
+	 * Render part of the result
+	 * @param mat Part of the source, null if the rendered pixels map outside the source
+	 * @param region Where mat is in the source
+	 * @param view Transform from the result to the rendered pixels
+	 * @param size Size of the rendered pixels
+	 * @return Mat
+	 */
+	Mat render(Mat mat, Rect region, Transform view, Size size) {
+		Mat outputMat;
+		if(mat == null) {
+			outputMat = Mat.zeros(size, CvType.CV_8UC3);
+		} else {
+			Mat sourceMat = mat;
+			for(ScanTask task : sourceTasks)
+				sourceMat = run(task, sourceMat, sourceMat != mat);
+			outputMat = new Mat();
+			Mat matrix = new Mat(3, 3, CvType.CV_64F);
+			matrix.put(0, 0, Transform.translate(region.x, region.y).then(transform).then(view).getMatrix());
+			Imgproc.warpPerspective(sourceMat, outputMat, matrix, size);
+			matrix.release();
+			if(sourceMat != mat) sourceMat.release();
+		}
+		for(Step step : steps) {
+			if(step.task != null) outputMat = run(step.task, outputMat, true);
+			else clip(outputMat, step.transform.then(view), step.size);
+		}
+		return outputMat;
+	}
+	
+	private static Mat run(ScanTask task, Mat mat, boolean release) {
+		Mat outputMat = task.run(mat);
+		if(outputMat == null) throw new RuntimeException();
+		if(outputMat != mat && release) mat.release();
+		return outputMat;
+	}
+	
+	/* Fill the pixels whose centres map back outside a source of size with black */
+	private static void clip(Mat mat, Transform transform, Size size) {
+		double[] m = transform.getMatrix();
+		double[][] corners = { { -0.5, -0.5 }, { size.width - 0.5, -0.5 }, { size.width - 0.5, size.height - 0.5 }, { -0.5, size.height - 0.5 } };
+		Point[] polygon = new Point[4];
+		double sign = 0;
+		for(int i = 0; i < 4; i++) {
+			double w = m[6] * corners[i][0] + m[7] * corners[i][1] + m[8];
+			/* A source crossing the horizon has no bounded outline, it is left unclipped */
+			if(w == 0 || sign * w < 0) return;
+			sign = Math.signum(w);
+			double[] point = transform.apply(corners[i][0], corners[i][1]);
+			polygon[i] = new Point(point[0], point[1]);
+		}
+		/* Nothing to clip when the corner pixels are inside */
+		int right = mat.cols() - 1, bottom = mat.rows() - 1;
+		if(contains(polygon, 0, 0) && contains(polygon, right, 0) && contains(polygon, right, bottom) && contains(polygon, 0, bottom))
+			return;
+		for(Point point : polygon) {
+			point.x = Math.round(point.x * (1 << SHIFT));
+			point.y = Math.round(point.y * (1 << SHIFT));
+		}
+		Mat mask = new Mat(mat.rows(), mat.cols(), CvType.CV_8UC1, new Scalar(255));
+		MatOfPoint points = new MatOfPoint(polygon);
+		Imgproc.fillConvexPoly(mask, points, new Scalar(0), Imgproc.LINE_8, SHIFT);
+		mat.setTo(new Scalar(0, 0, 0), mask);
+		points.release();
+		mask.release();
+	}
+	
+	/* Whether a convex polygon contains a point, in either winding */
+	private static boolean contains(Point[] polygon, double x, double y) {
+		boolean positive = false, negative = false;
+		for(int i = 0; i < polygon.length; i++) {
+			Point a = polygon[i], b = polygon[(i + 1) % polygon.length];
+			double cross = (b.x - a.x) * (y - a.y) - (b.y - a.y) * (x - a.x);
+			if(cross > 1e-9) positive = true;
+			else if(cross < -1e-9) negative = true;
+		}
+		return !(positive && negative);
+	}
+	
+	private static class Step {
+		
+		/* A task, or a clip to a source of size mapped to the result by transform */
+		private final ScanTask task;
+		private final Size size;
+		private final Transform transform;
+		
+		Step(ScanTask task, Size size, Transform transform) {
+			this.task = task;
+			this.size = size;
+			this.transform = transform;
+		}
+		
+	}
+	
+}
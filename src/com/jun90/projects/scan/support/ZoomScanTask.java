@@ -16,6 +16,8 @@
  */
 package com.jun90.projects.scan.support;
 
+import java.util.Objects;
+
 import org.opencv.core.Mat;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
@@ -64,6 +66,27 @@ public class ZoomScanTask implements ScanTask {
 		return outputMat;
 	}
 
+	@Override
+	public Size getOutputSize(Size size) {
+		if(x == 1 && y == 1) return new Size(size.width, size.height);
+		return new Size(Math.round(size.width * x), Math.round(size.height * y));
+	}
+
+	@Override
+	public long getScratchBytes(Size size, int pixelBytes) {
+		return 0;
+	}
+
+	@Override
+	public Transform getTransform(Size size) {
+		if(x == 1 && y == 1) return Transform.IDENTITY;
+		/* Imgproc.resize aligns pixel corners, not centres */
+		Size outputSize = getOutputSize(size);
+		return Transform.translate(0.5, 0.5)
+				.then(Transform.scale(outputSize.width / size.width, outputSize.height / size.height))
+				.then(Transform.translate(-0.5, -0.5));
+	}
+
 	@Override
 	public String toJSON() {
 		JsonObject json = new JsonObject();
@@ -77,10 +100,15 @@ public class ZoomScanTask implements ScanTask {
 	public boolean equals(Object object) {
 		if(object instanceof ZoomScanTask) {
 			ZoomScanTask target = (ZoomScanTask) object;
-			if(target.x == x && target.y == y)
+			if(Double.compare(target.x, x) == 0 && Double.compare(target.y, y) == 0)
 				return true;
 		}
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		return Objects.hash(x, y);
+	}
+
 }
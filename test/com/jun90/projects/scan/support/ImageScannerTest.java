@@ -0,0 +1,66 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ImageScannerTest {
+
+	private static int getReduction(ScanTask... tasks) {
+		return ImageScanner.getReduction(Arrays.asList(tasks));
+	}
+	
+	@Test
+	public void reducesByTheLargestPowerOfTwoTheZoomAllows() {
+		assertEquals(2, getReduction(new ZoomScanTask(0.5, 0.5)));
+		assertEquals(2, getReduction(new ZoomScanTask(0.3, 0.25)));
+		assertEquals(4, getReduction(new ZoomScanTask(0.25, 0.2)));
+		assertEquals(8, getReduction(new ZoomScanTask(0.1, 0.1)));
+		assertEquals(1, getReduction(new ZoomScanTask(0.6, 0.6)));
+	}
+	
+	@Test
+	public void usesTheLargestScaleAfterTheFirstZoom() {
+		assertEquals(1, getReduction(new ZoomScanTask(0.25, 0.25), new ZoomScanTask(4, 4)));
+		assertEquals(2, getReduction(new ZoomScanTask(0.25, 0.25), new ZoomScanTask(2, 2)));
+	}
+	
+	@Test
+	public void allowsOnlyRelativeTasksBeforeTheFirstZoom() {
+		assertEquals(4, getReduction(new CroppingScanTask(0.1, 0.1, 0.8, 0.8), new RotatingScanTask(90), new ZoomScanTask(0.25, 0.25)));
+		assertEquals(1, getReduction(new SharpenScanTask(1, 0.5), new ZoomScanTask(0.25, 0.25)));
+		assertEquals(4, getReduction(new ZoomScanTask(0.25, 0.25), new SharpenScanTask(1, 0.5)));
+		assertEquals(1, getReduction(new CroppingScanTask(0.1, 0.1, 0.8, 0.8)));
+	}
+	
+	@Test
+	public void equalTasksHaveEqualHashCodes() {
+		List<ScanTask> tasks = Arrays.<ScanTask> asList(new CroppingScanTask(0.0, 0, 1, 1), new ZoomScanTask(0.5, 0.5));
+		List<ScanTask> negativeZero = Arrays.<ScanTask> asList(new CroppingScanTask(-0.0, 0, 1, 1), new ZoomScanTask(0.5, 0.5));
+		assertEquals(tasks.get(1), negativeZero.get(1));
+		/* 0.0 and -0.0 hash differently, so they must not be equal */
+		assertEquals(tasks.get(0).hashCode() == negativeZero.get(0).hashCode(), tasks.get(0).equals(negativeZero.get(0)));
+		assertNotEquals(new ZoomScanTask(0.5, 0.5), new ZoomScanTask(0.5, 0.25));
+	}
+	
+}
@@ -0,0 +1,113 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+	@Test
+	public void admitsWhileThereIsRoom() {
+		MemoryBudget budget = new MemoryBudget(10);
+		assertTrue(budget.tryAcquire(6));
+		assertTrue(budget.tryAcquire(4));
+		assertFalse(budget.tryAcquire(1));
+		budget.release(4);
+		assertEquals(6, budget.getUsed());
+	}
+	
+	@Test(expected = RejectedExecutionException.class)
+	public void rejectsJobsLargerThanTheCapacity() throws InterruptedException {
+		new MemoryBudget(10).acquire(11);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsReleasingMoreThanUsed() {
+		MemoryBudget budget = new MemoryBudget(10);
+		budget.tryAcquire(2);
+		budget.release(3);
+	}
+	
+	@Test
+	public void timesOut() throws InterruptedException {
+		MemoryBudget budget = new MemoryBudget(10, 50, TimeUnit.MILLISECONDS);
+		budget.acquire(8);
+		try {
+			budget.acquire(5);
+			fail();
+		} catch (RejectedExecutionException e) { }
+		/* The timed out job no longer holds up the queue */
+		assertTrue(budget.tryAcquire(2));
+	}
+	
+	@Test
+	public void admitsInArrivalOrder() throws InterruptedException {
+		MemoryBudget budget = new MemoryBudget(10);
+		budget.acquire(6);
+		List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+		Thread large = start(budget, 10, order);
+		waitForQueue(budget, large);
+		/* A small job that would fit waits behind the large one */
+		assertFalse(budget.tryAcquire(2));
+		Thread small = start(budget, 2, order);
+		waitForQueue(budget, small);
+		budget.release(6);
+		large.join(5000);
+		small.join(5000);
+		assertEquals(2, order.size());
+		assertEquals(10L, (long) order.get(0));
+		assertEquals(2L, (long) order.get(1));
+		assertEquals(0, budget.getUsed());
+	}
+	
+	private static Thread start(MemoryBudget budget, long bytes, List<Long> order) {
+		CountDownLatch started = new CountDownLatch(1);
+		Thread thread = new Thread(() -> {
+			started.countDown();
+			try {
+				budget.acquire(bytes);
+				order.add(bytes);
+				budget.release(bytes);
+			} catch (InterruptedException e) { }
+		});
+		thread.start();
+		try {
+			started.await();
+		} catch (InterruptedException e) { }
+		return thread;
+	}
+	
+	private static void waitForQueue(MemoryBudget budget, Thread thread) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline)
+			Thread.sleep(5);
+		assertEquals(Thread.State.WAITING, thread.getState());
+	}
+	
+}
@@ -0,0 +1,117 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+import org.opencv.core.Size;
+
+public class RastersTest {
+
+	private static BufferedImage createImage(int width, int height) {
+		BufferedImage image = Rasters.create(width, height);
+		for(int y = 0; y < height; y++) {
+			for(int x = 0; x < width; x++)
+				image.setRGB(x, y, 0xff000000 | (x << 12) | (y << 4) | (x + y) % 16);
+		}
+		return image;
+	}
+	
+	private static void assertPixels(BufferedImage expected, BufferedImage actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		for(int y = 0; y < expected.getHeight(); y++) {
+			for(int x = 0; x < expected.getWidth(); x++)
+				assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+		}
+	}
+	
+	@Test
+	public void offsetOfSubImages() {
+		BufferedImage image = createImage(7, 5);
+		BufferedImage sub = image.getSubimage(2, 1, 4, 3).getSubimage(1, 1, 2, 2);
+		byte[] data = Rasters.getData(sub);
+		int offset = Rasters.getOffset(sub) + Rasters.getStride(sub) + Rasters.PIXEL_BYTES;
+		/* Pixel (1, 1) of the sub-image is pixel (4, 3) of the image, bytes are BGR */
+		int rgb = image.getRGB(4, 3);
+		assertEquals(rgb & 0xff, data[offset] & 0xff);
+		assertEquals(rgb >> 8 & 0xff, data[offset + 1] & 0xff);
+		assertEquals(rgb >> 16 & 0xff, data[offset + 2] & 0xff);
+		assertEquals(7 * Rasters.PIXEL_BYTES, Rasters.getStride(sub));
+	}
+	
+	@Test
+	public void copyOfSubImage() {
+		BufferedImage sub = createImage(9, 6).getSubimage(3, 2, 5, 3);
+		BufferedImage copy = Rasters.copy(sub);
+		assertNotSame(Rasters.getData(sub), Rasters.getData(copy));
+		assertEquals(0, Rasters.getOffset(copy));
+		assertPixels(sub, copy);
+	}
+	
+	@Test
+	public void mirror() {
+		BufferedImage image = createImage(6, 4).getSubimage(1, 1, 5, 3);
+		for(int i = 0; i < 4; i++) {
+			boolean mirrorX = (i & 1) != 0, mirrorY = (i & 2) != 0;
+			BufferedImage output = new MirrorScanTask(mirrorX, mirrorY).run(image);
+			assertEquals(image.getWidth(), output.getWidth());
+			assertEquals(image.getHeight(), output.getHeight());
+			for(int y = 0; y < image.getHeight(); y++) {
+				for(int x = 0; x < image.getWidth(); x++) {
+					int outputX = mirrorX ? image.getWidth() - 1 - x : x, outputY = mirrorY ? image.getHeight() - 1 - y : y;
+					assertEquals(image.getRGB(x, y), output.getRGB(outputX, outputY));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void quarterTurnsMatchTheirTransform() {
+		BufferedImage image = createImage(7, 4).getSubimage(1, 0, 5, 3);
+		Size size = new Size(image.getWidth(), image.getHeight());
+		for(int angle : new int[] { 90, 180, 270, -90, 450 }) {
+			RotatingScanTask task = new RotatingScanTask(angle);
+			BufferedImage output = task.run(image);
+			Size outputSize = task.getOutputSize(size);
+			assertEquals(outputSize.width, output.getWidth(), 0);
+			assertEquals(outputSize.height, output.getHeight(), 0);
+			Transform transform = task.getTransform(size);
+			for(int y = 0; y < image.getHeight(); y++) {
+				for(int x = 0; x < image.getWidth(); x++) {
+					double[] point = transform.apply(x, y);
+					assertEquals(image.getRGB(x, y), output.getRGB((int) Math.round(point[0]), (int) Math.round(point[1])));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void clockwiseQuarterTurn() {
+		BufferedImage image = createImage(3, 2);
+		BufferedImage output = new RotatingScanTask(90).run(image);
+		/* The bottom left corner becomes the top left one */
+		assertEquals(image.getRGB(0, 1), output.getRGB(0, 0));
+		assertEquals(image.getRGB(0, 0), output.getRGB(1, 0));
+		assertEquals(image.getRGB(2, 1), output.getRGB(0, 2));
+	}
+	
+}
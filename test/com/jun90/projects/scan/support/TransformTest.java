@@ -0,0 +1,95 @@
+/* 
+ * Copyright 2019 Zhang Jun <jun90s@163.com>.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.jun90.projects.scan.support;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+public class TransformTest {
+
+	private static final double EPSILON = 1e-9;
+	
+	@Test
+	public void perspectiveMapsTheCorners() {
+		double[] src = { 10, 20, 300, 15, 320, 400, 5, 380 };
+		double[] dst = { 0, 0, 199, 0, 199, 299, 0, 299 };
+		Transform transform = Transform.perspective(src, dst);
+		for(int i = 0; i < 4; i++)
+			assertArrayEquals(new double[] { dst[i * 2], dst[i * 2 + 1] }, transform.apply(src[i * 2], src[i * 2 + 1]), 1e-6);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void perspectiveRejectsPointsOnALine() {
+		Transform.perspective(new double[] { 0, 0, 1, 1, 2, 2, 3, 3 }, new double[] { 0, 0, 1, 0, 1, 1, 0, 1 });
+	}
+	
+	@Test
+	public void invertUndoes() {
+		Transform transform = Transform.perspective(new double[] { 10, 20, 300, 15, 320, 400, 5, 380 },
+				new double[] { 0, 0, 199, 0, 199, 299, 0, 299 });
+		double[] point = transform.invert().apply(transform.apply(123, 45)[0], transform.apply(123, 45)[1]);
+		assertArrayEquals(new double[] { 123, 45 }, point, 1e-6);
+		assertTrue(isIdentity(transform.then(transform.invert())));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void invertRejectsSingular() {
+		Transform.scale(0, 1).invert();
+	}
+	
+	@Test
+	public void thenAppliesThisFirst() {
+		Transform transform = Transform.translate(1, 2).then(Transform.scale(10, 100));
+		assertArrayEquals(new double[] { 10, 200 }, transform.apply(0, 0), EPSILON);
+		assertArrayEquals(new double[] { 1, 2 }, Transform.scale(10, 100).then(Transform.translate(1, 2)).apply(0, 0), EPSILON);
+	}
+	
+	@Test
+	public void boundsAddAMarginAndClip() {
+		Rect rect = Transform.translate(-10, -10).getBounds(15, 15, 4, 4, new Size(100, 100));
+		assertEquals(new Rect(4, 4, 7, 7), rect);
+		rect = Transform.IDENTITY.getBounds(-0.5, -0.5, 10, 10, new Size(5, 5));
+		assertEquals(new Rect(0, 0, 5, 5), rect);
+		rect = Transform.IDENTITY.getBounds(200, 200, 10, 10, new Size(5, 5));
+		assertEquals(0, rect.width);
+	}
+	
+	@Test
+	public void composedCropAndRotationMapOutsideTheCrop() {
+		/* The composed warp alone samples outside the crop, which WarpPlan clips */
+		Size size = new Size(100, 100);
+		WarpPlan plan = WarpPlan.create(Arrays.<ScanTask> asList(new CroppingScanTask(0.25, 0.25, 0.5, 0.5), new RotatingScanTask(30)), size);
+		double[] point = plan.getTransform().invert().apply(0, 0);
+		assertTrue(point[0] < 25 || point[1] < 25);
+	}
+	
+	private static boolean isIdentity(Transform transform) {
+		double[] m = transform.getMatrix(), identity = Transform.IDENTITY.getMatrix();
+		for(int i = 0; i < 9; i++) {
+			if(Math.abs(m[i] / m[8] - identity[i]) > 1e-9) return false;
+		}
+		return true;
+	}
+	
+}